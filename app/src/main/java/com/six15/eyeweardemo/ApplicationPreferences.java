@@ -1,12 +1,12 @@
 package com.six15.eyeweardemo;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
-import android.preference.PreferenceManager;
 
 /**
  * Created by George on 9/19/2015.
+ *
+ * Paired device address, kept for existing callers.  Backed by {@link DeviceProfileStore}, so
+ * reads come from memory and writes are applied asynchronously.
  */
 public class ApplicationPreferences {
 
@@ -18,49 +18,22 @@ public class ApplicationPreferences {
     }
 
     public void save(Context context, String text) {
-        SharedPreferences settings;
-        Editor editor;
-
-        //settings = PreferenceManager.getDefaultSharedPreferences(context);
-        settings = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        editor = settings.edit();
-
-        editor.putString(PREFS_KEY, text);
-
-        editor.commit();
+        DeviceProfileStore.getInstance(context).savePairedDevice(text, null);
     }
 
     public String getValue(Context context) {
-        SharedPreferences settings;
-        String text;
-
-        //settings = PreferenceManager.getDefaultSharedPreferences(context);
-        settings = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        text = settings.getString(PREFS_KEY, null);
-        return text;
+        return DeviceProfileStore.getInstance(context).getPrimaryAddress();
     }
 
     public void clearSharedPreference(Context context) {
-        SharedPreferences settings;
-        Editor editor;
-
-        //settings = PreferenceManager.getDefaultSharedPreferences(context);
-        settings = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        editor = settings.edit();
-
-        editor.clear();
-        editor.commit();
+        DeviceProfileStore.getInstance(context).clear();
     }
 
     public void removeValue(Context context) {
-        SharedPreferences settings;
-        Editor editor;
-
-        settings = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        editor = settings.edit();
-
-        editor.remove(PREFS_KEY);
-        editor.commit();
+        DeviceProfileStore store = DeviceProfileStore.getInstance(context);
+        String address = store.getPrimaryAddress();
+        if (address != null)
+            store.removePairedDevice(address);
     }
 
 
@@ -4,49 +4,75 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BluetoothLeService extends Service {
     private final static String TAG = "BluetoothLeService";
-    private final static BlockingQueue<byte[]> packetQueue = new LinkedBlockingQueue<>();
-    private final static Lock qLock = new ReentrantLock();
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
+    // address of the primary device, the target of the single-device API
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+
+    // Connection registry keyed by device address, and named groups of addresses.
+    private final Map<String, EyewearConnection> mConnections = new ConcurrentHashMap<>();
+    // Senders iterate a group's members unlocked; changes to the groups are made under mGroups
+    private final Map<String, Set<String>> mGroups = new ConcurrentHashMap<>();
+    private boolean bJournalEnabled = false;
+    private boolean bCaptureEnabled = false;
+    // device that shows the aggregated vitals of every connected sensor, null for none
+    private volatile String mVitalsOverlayAddress = null;
+
+    // Frames are encoded here rather than in the caller, so frame N+1 is packetized while
+    // frame N is on air and the writer finds it ready when N's footer completes.  One thread
+    // keeps frames in the order they were sent.
+    private final ExecutorService mFrameEncoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FrameEncoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private Handler mHandler;
-    private Handler mQueueHandler;
-    private Thread mQueueProcessorThread = null;
-    private boolean mScanning = false;
+    private final AtomicBoolean mScanning = new AtomicBoolean(false);
     private long SCAN_PERIOD = 5000;
 
+    // Targeted scan for a known device: scan in short windows until it shows up or we give up.
+    private static final long TARGETED_SCAN_WINDOW = 1000;
+    private static final long TARGETED_SCAN_IDLE = 2000;
+    private static final long TARGETED_SCAN_TIMEOUT = 30000;
+    // read on the scan callback thread
+    private volatile String mTargetAddress = null;
+    private long mTargetedScanDeadline = 0;
+
     private static final String mDeviceName  = "SIX15.EYE";
-    private boolean bInitialized = false;
+    private volatile boolean bInitialized = false;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -64,154 +90,133 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_BLE_SCAN_START";
     public final static String ACTION_BLE_SCAN_STOP =
             "com.example.bluetooth.le.ACTION_BLE_SCAN_STOP";
+    public final static String ACTION_BULK_TRANSFER_COMPLETE =
+            "com.example.bluetooth.le.ACTION_BULK_TRANSFER_COMPLETE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_RSSI =
+            "com.example.bluetooth.le.EXTRA_RSSI";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
-            UUID.fromString(Six15GattAttributes.HEART_RATE_MEASUREMENT);
+            Six15GattAttributes.UUID_HEART_RATE_MEASUREMENT;
 
     public final static UUID UUID_SIX15_RECEIVE_DATA =
-            UUID.fromString(Six15GattAttributes.SIX15_DATA_RX);
+            Six15GattAttributes.UUID_SIX15_DATA_RX;
 
-    public final static UUID UUID_SIX15_TRANSMIT_DATA =
-            UUID.fromString(Six15GattAttributes.SIX15_DATA_TX);
+    public final static UUID UUID_SIX15_SERVICE =
+            Six15GattAttributes.UUID_SIX15_BLE_SERVICE;
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
-        }
+    public final static UUID UUID_SIX15_TRANSMIT_DATA =
+            Six15GattAttributes.UUID_SIX15_DATA_TX;
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+    // Builds the broadcast extras for a characteristic update.
+    private interface CharacteristicHandler {
+        void handle(Intent intent, BluetoothGattCharacteristic characteristic);
+    }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                // start processing queue
-                processQueue();
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+    private static void putHexExtra(Intent intent, byte[] data) {
+        if (data != null && data.length > 0) {
+            final StringBuilder stringBuilder = new StringBuilder(data.length * 3);
+            for(byte byteChar : data) {
+                stringBuilder.append(hexArray[(byteChar >> 4) & 0x0F])
+                        .append(hexArray[byteChar & 0x0F]).append(' ');
             }
+            intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
         }
+    }
 
+    // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+    // carried out as per profile specifications:
+    // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+    private static final CharacteristicHandler HEART_RATE_HANDLER = new CharacteristicHandler() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public void handle(Intent intent, BluetoothGattCharacteristic characteristic) {
+            final int heartRate = SensorAggregator.parseHeartRate(characteristic.getValue());
+            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
         }
+    };
 
+    private static final CharacteristicHandler SIX15_RECEIVE_HANDLER = new CharacteristicHandler() {
         @Override
-        public void onReliableWriteCompleted (BluetoothGatt gatt, int status){
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-
-            }
-            else
-            {
-
-            }
-
-            // process next item in queue (queue blocks if empty)
-            processQueue();
+        public void handle(Intent intent, BluetoothGattCharacteristic characteristic) {
+            final byte[] data = characteristic.getValue();
+            Log.i(TAG, "DATA: " + bytesToHex(data));
+            intent.putExtra("BLE_DATA", data);
         }
+    };
 
+    private static final CharacteristicHandler SIX15_TRANSMIT_HANDLER = new CharacteristicHandler() {
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status){
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_WRITE_COMPLETED, characteristic);
-
-            } else {
-                Log.w(TAG, "onCharacteristicWrite received: " + status);
-            }
-
-            // process next item in queue (queue blocks if empty)
-            processQueue();
+        public void handle(Intent intent, BluetoothGattCharacteristic characteristic) {
+            putHexExtra(intent, characteristic.getValue());
         }
+    };
 
+    // For all other profiles, writes the data formatted in HEX.
+    private static final CharacteristicHandler DEFAULT_HANDLER = new CharacteristicHandler() {
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void handle(Intent intent, BluetoothGattCharacteristic characteristic) {
+            Log.w(TAG, "Unknown service characteristic " + characteristic.getUuid());
+            putHexExtra(intent, characteristic.getValue());
         }
     };
 
+    private static final Map<UUID, CharacteristicHandler> characteristicHandlers = new HashMap<>();
+
+    static {
+        characteristicHandlers.put(UUID_HEART_RATE_MEASUREMENT, HEART_RATE_HANDLER);
+        characteristicHandlers.put(UUID_SIX15_RECEIVE_DATA, SIX15_RECEIVE_HANDLER);
+        characteristicHandlers.put(UUID_SIX15_TRANSMIT_DATA, SIX15_TRANSMIT_HANDLER);
+    }
+
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
+    void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        sendBroadcast(intent);
+    }
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
-            }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else if(UUID_SIX15_RECEIVE_DATA.equals(characteristic.getUuid())) {
-            Log.d(TAG, "Six15 Eyewear bytes.");
-            final byte[] data = characteristic.getValue();
-            // send to queue
-            Log.i(TAG, "DATA: " + bytesToHex(data));
-            intent.putExtra("BLE_DATA", data);
-
-        } else if(UUID_SIX15_TRANSMIT_DATA.equals(characteristic.getUuid())) {
-
-            final byte[] data = characteristic.getValue();
-            Log.d(TAG, "TX: " + characteristic.getUuid() + " Data: " + bytesToHex(data));
+    void broadcastUpdate(final String action,
+                         final BluetoothGattCharacteristic characteristic,
+                         final String address) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
 
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-            }
-        } else
-        {
-            // For all other profiles, writes the data formatted in HEX.
+        CharacteristicHandler handler = characteristicHandlers.get(characteristic.getUuid());
+        if (handler == null)
+            handler = DEFAULT_HANDLER;
+        handler.handle(intent, characteristic);
+        sendBroadcast(intent);
+    }
 
-            Log.w(TAG, "Unknown service characteristic " + characteristic.getUuid());
-            final byte[] data = characteristic.getValue();
+    // Broadcasts the aggregated vitals of a sensor, at most once per overlay interval, in place of
+    // one broadcast per notification, and shows them on the overlay device if there is one.
+    void onVitalsUpdated(final String address, final String summary) {
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        intent.putExtra(EXTRA_DATA, summary);
+        sendBroadcast(intent);
 
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-            }
+        final String overlayAddress = mVitalsOverlayAddress;
+        if (overlayAddress != null) {
+            // a summary that did not make it before the next one is not worth sending
+            sendCommandString(overlayAddress, summary, SensorAggregator.DEFAULT_OVERLAY_INTERVAL_MS);
         }
+    }
+
+    // Broadcasts a value received on the Six-15 RX characteristic; same extras as the
+    // characteristic variant, for values copied out of the notification ring.
+    void broadcastReceivedData(final String address, final byte[] data) {
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        Log.i(TAG, "DATA: " + bytesToHex(data));
+        intent.putExtra("BLE_DATA", data);
         sendBroadcast(intent);
     }
 
@@ -249,53 +254,16 @@ public class BluetoothLeService extends Service {
         return new String(hexChars);
     }
 
-    class Consumer implements Runnable {
-        private final BlockingQueue<byte[]> queue;
-        private final BluetoothGattCharacteristic sendDataChar;
-
-        Consumer(BlockingQueue q, BluetoothGattCharacteristic writeChar) {
-            queue = q;
-            sendDataChar = writeChar;
-        }
-
-        public void run() {
-            try {
-                consume(queue.take());
-            } catch (InterruptedException ex) {
-                Log.e(TAG, "Packet Queue Interrupted: " + ex.getMessage());
-            }
-        }
-        void consume(byte[] x) {
-            sendDataChar.setValue(x);
-            boolean status = writeCharacteristic(sendDataChar);
-            if (!status)
-                Log.e(TAG, "Failed to send BLE Packet");
-        }
-    }
-
-    private void processQueue(){
-        final BluetoothGattCharacteristic sendDataChar = mBluetoothGatt.getService(UUID.fromString(Six15GattAttributes.SIX15_BLE_SERVICE))
-                .getCharacteristic(UUID.fromString(Six15GattAttributes.SIX15_DATA_TX));
-        if(sendDataChar == null)
-        {
-            Log.e(TAG, "Fatal Error cannot retrieve characteristic from service");
-            return;
-        }
-        Consumer c1 = new Consumer(packetQueue, sendDataChar);
-        mQueueProcessorThread = new Thread(c1);
-        mQueueProcessorThread.start();
-    }
-
     @Override
     public void onCreate() {
         Log.d(TAG,"Create");
         mHandler = new Handler();
-        mQueueHandler = new Handler();
     }
 
     @Override
     public void onDestroy() {
         Log.d(TAG, "Destroy");
+        mFrameEncoder.shutdown();
     }
     /**
      * Initializes a reference to the local Bluetooth adapter.
@@ -328,22 +296,43 @@ public class BluetoothLeService extends Service {
         return bInitialized;
     }
 
+    private EyewearConnection getPrimaryConnection(){
+        if (mBluetoothDeviceAddress == null)
+            return null;
+        return mConnections.get(mBluetoothDeviceAddress);
+    }
+
     public BluetoothDevice getConnectedDevice(){
-        if(mBluetoothGatt != null && mConnectionState == STATE_CONNECTED){
-            return mBluetoothGatt.getDevice();
+        EyewearConnection connection = getPrimaryConnection();
+        if(connection != null){
+            return connection.getDevice();
         }
 
         return null;
     }
+
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * @return the devices of every connection that is currently connected.
+     */
+    public List<BluetoothDevice> getConnectedDevices(){
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (EyewearConnection connection : mConnections.values()) {
+            BluetoothDevice device = connection.getDevice();
+            if (device != null)
+                devices.add(device);
+        }
+        return devices;
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device.  The device becomes the
+     * primary device used by the single-device methods; connections to other devices stay open.
      *
      * @param address The device address of the destination device.
      *
      * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
-     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     *         is reported asynchronously through the {@link #ACTION_GATT_CONNECTED} broadcast
+     *         carrying the address in {@link #EXTRA_ADDRESS}.
      */
     public boolean connect(final String address) {
         if (mBluetoothAdapter == null || address == null) {
@@ -351,56 +340,201 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+        EyewearConnection connection = mConnections.get(address);
+        if (connection == null) {
+            connection = new EyewearConnection(this, address);
+            mConnections.put(address, connection);
+            watchConnectionState(connection);
+            if (bJournalEnabled) {
+                openJournal(connection);
+            }
+            if (bCaptureEnabled) {
+                openCapture(connection);
             }
         }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+        return connection.connect(mBluetoothAdapter);
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Disconnects the primary device or cancels a pending connection. The disconnection result
+     * is reported asynchronously through the {@link #ACTION_GATT_DISCONNECTED} broadcast.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        disconnect(mBluetoothDeviceAddress);
+    }
+
+    public void disconnect(final String address) {
+        EyewearConnection connection = address == null ? null : mConnections.get(address);
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.disconnect();
+    }
+
+    // A targeted scan for a device that got connected some other way has nothing left to find.
+    private void watchConnectionState(final EyewearConnection connection) {
+        connection.getStateMachine().addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                if (to != ConnectionStateMachine.STATE_CONNECTED)
+                    return;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connection.getAddress().equals(mTargetAddress)) {
+                            scanLeDevice(false);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
+     * After using the BLE devices, the app must call this method to ensure resources are
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        for (EyewearConnection connection : mConnections.values()) {
+            connection.close();
+            connection.closeJournal();
+            connection.closeCapture();
+        }
+        mConnections.clear();
+    }
+
+    /**
+     * Turns the outbound journal on or off.  When on, every frame queued for a device is also
+     * written to a memory-mapped file under the app's files directory, and frames that were
+     * still pending when the process died are queued again on the next connect to that device.
+     */
+    public void setJournalEnabled(boolean enabled) {
+        bJournalEnabled = enabled;
+        for (EyewearConnection connection : mConnections.values()) {
+            if (enabled) {
+                openJournal(connection);
+            } else {
+                connection.closeJournal();
+            }
+        }
+    }
+
+    private void openJournal(EyewearConnection connection) {
+        File file = new File(getFilesDir(),
+                "outbound_" + connection.getAddress().replace(":", "") + ".journal");
+        try {
+            connection.setJournal(new OutboundJournal(file));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open outbound journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Turns packet capture on or off.  When on, every packet written to or notified by a device
+     * is recorded with its timestamp to a new capture file per connection under the app's files
+     * directory, for replaying a session later.
+     */
+    public void setCaptureEnabled(boolean enabled) {
+        bCaptureEnabled = enabled;
+        for (EyewearConnection connection : mConnections.values()) {
+            if (enabled) {
+                openCapture(connection);
+            } else {
+                connection.closeCapture();
+            }
+        }
+    }
+
+    private void openCapture(EyewearConnection connection) {
+        File file = new File(getFilesDir(), "capture_" + connection.getAddress().replace(":", "")
+                + "_" + System.currentTimeMillis() + ".cap");
+        try {
+            connection.setCapture(new PacketCapture(file));
+            Log.i(TAG, "Capturing packets to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open packet capture: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the transmit parameters currently chosen for a device's link, or null if there
+     *         is no connection for the address.
+     */
+    public LinkAutotuner getLinkTuning(final String address) {
+        EyewearConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.getLinkTuner();
+    }
+
+    /**
+     * Shows heart rate summaries (latest, min-max and average over the last 30 s) from any
+     * connected sensor on the eyewear at {@code address}, at most once a second.
+     *
+     * @param address the device to show them on, or null to stop.
+     */
+    public void setVitalsOverlay(final String address) {
+        mVitalsOverlayAddress = address;
+    }
+
+    /**
+     * @return counts of refused, timed out, retried and failed GATT operations and of GATT
+     *         resets on a device's link, or null if there is no connection for the address.
+     */
+    public TransportMetrics getTransportMetrics(final String address) {
+        EyewearConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.getTransportMetrics();
+    }
+
+    /**
+     * Overrides the autotuned packet rate of a device's link.
+     *
+     * @param packetsPerSecond sustained write rate, or 0 to go back to the autotuner.
+     * @param burst packets that may be written back to back after the link was idle.
+     */
+    public void setPacing(final String address, double packetsPerSecond, int burst) {
+        EyewearConnection connection = mConnections.get(address);
+        if (connection != null) {
+            connection.setPacing(packetsPerSecond, burst);
+        }
+    }
+
+    /**
+     * @return percentiles of the per-stage latency of recently sent frames, from the UI action
+     *         to the footer write and the eyewear's acknowledge.
+     */
+    public String getLatencySummary() {
+        return LatencyTracer.getInstance().getSummary();
+    }
+
+    public boolean isConnected(final String address) {
+        EyewearConnection connection = mConnections.get(address);
+        return connection != null && connection.isConnected();
+    }
+
+    /**
+     * Adds a device to a named group so frames can be sent to several headsets at once.
+     */
+    public void addToGroup(final String group, final String address) {
+        synchronized (mGroups) {
+            Set<String> members = mGroups.get(group);
+            if (members == null) {
+                members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                mGroups.put(group, members);
+            }
+            members.add(address);
+        }
+    }
+
+    public void removeFromGroup(final String group, final String address) {
+        synchronized (mGroups) {
+            Set<String> members = mGroups.get(group);
+            if (members != null) {
+                members.remove(address);
+                if (members.isEmpty())
+                    mGroups.remove(group);
+            }
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
@@ -411,19 +545,21 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        EyewearConnection connection = getPrimaryConnection();
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        connection.readCharacteristic(characteristic);
     }
 
     public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        EyewearConnection connection = getPrimaryConnection();
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return false;
         }
-        return mBluetoothGatt.writeCharacteristic(characteristic);
+        return connection.writeCharacteristic(characteristic);
     }
 
     /**
@@ -434,77 +570,205 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        EyewearConnection connection = getPrimaryConnection();
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        connection.setCharacteristicNotification(characteristic, enabled);
+    }
 
-        // This is the SIX-15 Eyewear Serial TX
-        if(UUID_SIX15_RECEIVE_DATA.equals(characteristic.getUuid())) {
+    public BluetoothGattService getBLEService(UUID uuid){
+        EyewearConnection connection = getPrimaryConnection();
+        if (connection == null)
+            return null;
+        return connection.getBLEService(uuid);
+    }
 
-            Log.i(TAG, "Enabling receive data from eyewear");
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(Six15GattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    // A single callback instance is used for the lifetime of the service so stopLeScan is
+    // always handed the same callback that started the scan.
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
 
-        }
+                @Override
+                public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
+                    if(device == null)
+                        return;
+
+                    final String target = mTargetAddress;
+                    if(target != null) {
+                        if(target.equals(device.getAddress())) {
+                            mHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onTargetFound(device, rssi);
+                                }
+                            });
+                        }
+                        return;
+                    }
 
+                    if (isSix15Device(device, scanRecord)) {
+                        broadcastDeviceFound(device, rssi);
+                    }
+                }
+            };
+
+    private void broadcastDeviceFound(BluetoothDevice device, int rssi) {
+        final Intent intent = new Intent(ACTION_DEVICE_FOUND);
+        intent.putExtra("BLE_DEVICE", device);
+        intent.putExtra(EXTRA_RSSI, rssi);
+        sendBroadcast(intent);
     }
 
-    public BluetoothGattService getBLEService(UUID uuid){
-        BluetoothGattService temp = null;
-        temp = mBluetoothGatt.getService(uuid);
-        if(temp == null)
-            mBluetoothGatt.discoverServices();
+    private static boolean isSix15Device(BluetoothDevice device, byte[] scanRecord) {
+        if (advertisesService(scanRecord, UUID_SIX15_SERVICE))
+            return true;
+        final String name = device.getName();
+        return name != null && name.equals(mDeviceName);
+    }
 
-        return temp;
+    /**
+     * Checks the 16 and 128 bit service UUID lists of an advertisement for {@code service}.
+     * Filtering here rather than with startLeScan(UUID[], ...) since the platform filter
+     * misses 16 bit UUIDs on a number of KitKat stacks.
+     */
+    static boolean advertisesService(byte[] scanRecord, UUID service) {
+        if (scanRecord == null)
+            return false;
+        final long msb = service.getMostSignificantBits();
+        final long lsb = service.getLeastSignificantBits();
+        // 16 bit UUIDs only exist for the Bluetooth base UUID 0000xxxx-0000-1000-8000-00805f9b34fb
+        final boolean isShort = (msb & 0xFFFF0000FFFFFFFFL) == 0x0000000000001000L
+                && lsb == 0x800000805F9B34FBL;
+        final int shortUuid = (int) ((msb >>> 32) & 0xFFFF);
+
+        int pos = 0;
+        while (pos < scanRecord.length - 1) {
+            final int len = scanRecord[pos] & 0xFF;
+            if (len == 0 || pos + len >= scanRecord.length)
+                break;
+            final int type = scanRecord[pos + 1] & 0xFF;
+            if ((type == 0x02 || type == 0x03) && isShort) {
+                for (int i = pos + 2; i + 1 <= pos + len; i += 2) {
+                    int uuid = (scanRecord[i] & 0xFF) | ((scanRecord[i + 1] & 0xFF) << 8);
+                    if (uuid == shortUuid)
+                        return true;
+                }
+            } else if (type == 0x06 || type == 0x07) {
+                for (int i = pos + 2; i + 15 <= pos + len; i += 16) {
+                    long uuidLsb = 0;
+                    long uuidMsb = 0;
+                    for (int b = 0; b < 8; b++) {
+                        uuidLsb |= (long) (scanRecord[i + b] & 0xFF) << (8 * b);
+                        uuidMsb |= (long) (scanRecord[i + 8 + b] & 0xFF) << (8 * b);
+                    }
+                    if (uuidMsb == msb && uuidLsb == lsb)
+                        return true;
+                }
+            }
+            pos += len + 1;
+        }
+        return false;
     }
 
-    public void scanLeDevice(final boolean enable) {
+    private final Runnable mStopScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Timout Stop Scan");
+            mScanning.set(false);
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
 
-        final BluetoothAdapter.LeScanCallback mLeScanCallback =
-                new BluetoothAdapter.LeScanCallback() {
+            broadcastUpdate(ACTION_BLE_SCAN_STOP);
+        }
+    };
 
-                    @Override
-                    public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
-
-                        if(device != null && device.getName() != null) {
-                            if (device.getName().compareTo(mDeviceName) == 0) {
-                                Log.i(TAG, "Found Six-15 Eyewear");
-                                final Intent intent = new Intent(ACTION_DEVICE_FOUND);
-                                intent.putExtra("BLE_DEVICE", device);
-                                sendBroadcast(intent);
-                            }
-                        }else
-                        {
-                            Log.i(TAG,"Scanned device is null or has a null name");
-                        }
-                    }
-                };
+    /**
+     * Scans for a specific device and connects to it as soon as it is seen.  The radio is only
+     * on for TARGETED_SCAN_WINDOW out of every TARGETED_SCAN_WINDOW + TARGETED_SCAN_IDLE.
+     * After TARGETED_SCAN_TIMEOUT the scan stops and a direct connect is tried instead, for
+     * devices that advertise too rarely to be caught in a window.
+     *
+     * @param address The device address of the paired device.
+     */
+    public void scanForDevice(final String address) {
+        if (address == null) {
+            scanLeDevice(true);
+            return;
+        }
+        if (mScanning.get()) {
+            scanLeDevice(false);
+        }
+        Log.d(TAG, "Targeted scan for " + address);
+        mTargetAddress = address;
+        mTargetedScanDeadline = SystemClock.uptimeMillis() + TARGETED_SCAN_TIMEOUT;
+        mScanning.set(true);
+        broadcastUpdate(ACTION_BLE_SCAN_START);
+        mScanWindowStart.run();
+    }
+
+    private final Runnable mScanWindowStart = new Runnable() {
+        @Override
+        public void run() {
+            if (mTargetAddress == null)
+                return;
+            if (SystemClock.uptimeMillis() >= mTargetedScanDeadline) {
+                final String address = mTargetAddress;
+                Log.d(TAG, "Targeted scan timed out, connecting to " + address + " directly");
+                scanLeDevice(false);
+                connect(address);
+                return;
+            }
+            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mHandler.postDelayed(mScanWindowEnd, TARGETED_SCAN_WINDOW);
+        }
+    };
 
+    private final Runnable mScanWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            if (mTargetAddress == null)
+                return;
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mHandler.postDelayed(mScanWindowStart, TARGETED_SCAN_IDLE);
+        }
+    };
+
+    private void onTargetFound(BluetoothDevice device, int rssi) {
+        // several advertisements may have been posted before the scan stopped
+        if (mTargetAddress == null || !mTargetAddress.equals(device.getAddress()))
+            return;
+        Log.i(TAG, "Found paired device " + device.getAddress());
+        scanLeDevice(false);
+        broadcastDeviceFound(device, rssi);
+        connect(device.getAddress());
+    }
+
+    public void scanLeDevice(final boolean enable) {
 
         if (enable) {
+            if (mTargetAddress != null) {
+                scanLeDevice(false);
+            }
+            if (!mScanning.compareAndSet(false, true)) {
+                // restart the timeout rather than stacking a second scan
+                mHandler.removeCallbacks(mStopScanRunnable);
+                mHandler.postDelayed(mStopScanRunnable, SCAN_PERIOD);
+                return;
+            }
             // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    Log.d(TAG, "Timout Stop Scan");
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-
-                    broadcastUpdate(ACTION_BLE_SCAN_STOP);
-                }
-            }, SCAN_PERIOD);
+            mHandler.postDelayed(mStopScanRunnable, SCAN_PERIOD);
 
-            mScanning = true;
             mBluetoothAdapter.startLeScan(mLeScanCallback);
             broadcastUpdate(ACTION_BLE_SCAN_START);
         } else {
 
             Log.d(TAG, "Stopping Scan");
-            mScanning = false;
+            mHandler.removeCallbacks(mStopScanRunnable);
+            mHandler.removeCallbacks(mScanWindowStart);
+            mHandler.removeCallbacks(mScanWindowEnd);
+            mTargetAddress = null;
+            mScanning.set(false);
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
             broadcastUpdate(ACTION_BLE_SCAN_STOP);
 
@@ -512,14 +776,12 @@ public class BluetoothLeService extends Service {
     }
 
     public boolean isScanning(){
-        return mScanning;
+        return mScanning.get();
     }
 
     public boolean isConnected(){
-        if(mConnectionState == STATE_CONNECTED)
-            return true;
-
-        return false;
+        EyewearConnection connection = getPrimaryConnection();
+        return connection != null && connection.isConnected();
     }
 
     /**
@@ -529,23 +791,198 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        EyewearConnection connection = getPrimaryConnection();
+        if (connection == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return connection.getSupportedGattServices();
     }
 
     public boolean sendCommandString(String command){
-        boolean bReturn = true;
-        SerialProtocol protoHelper = new SerialProtocol(SerialProtocol.FrameTypes.STRING, command.length());
-        byte[] byteArr = command.getBytes();
-        qLock.lock();
-        Log.d(TAG, "Add " + command + " to BLE queue");
-        Log.d(TAG, "Queue Size: " + packetQueue.size());
-        while (protoHelper.hasNextPacket()) {
-            byte[] temp = protoHelper.getNextPacket(byteArr);
-            packetQueue.add(temp);
-        }
-        qLock.unlock();
-        return bReturn;
+        return sendCommandString(mBluetoothDeviceAddress, command);
+    }
+
+    /**
+     * Queues a command string for one device.
+     *
+     * @return false if there is no connection registered for the address, or the command is
+     *         empty or too long for one frame.
+     */
+    public boolean sendCommandString(String address, String command){
+        final long sendTime = System.nanoTime();
+        Log.d(TAG, "Add " + command + " to BLE queue of " + address);
+        return enqueueFrame(address, SerialProtocol.FrameTypes.STRING, command.getBytes(), sendTime,
+                FrameTransfer.NO_DEADLINE);
+    }
+
+    /**
+     * Queues a command string that is only worth showing for {@code validForMs}, like a turn
+     * arrow or a countdown.  It is sent ahead of frames with a later or no deadline, and
+     * dropped unsent if it can no longer reach the eyewear in time.
+     */
+    public boolean sendCommandString(String address, String command, long validForMs){
+        final long sendTime = System.nanoTime();
+        Log.d(TAG, "Add " + command + " to BLE queue of " + address + ", valid for " + validForMs + " ms");
+        return enqueueFrame(address, SerialProtocol.FrameTypes.STRING, command.getBytes(), sendTime,
+                sendTime + TimeUnit.MILLISECONDS.toNanos(validForMs));
+    }
+
+    /**
+     * Queues a command string for every device in a group.  The frame is encoded once and
+     * shared by all the device queues.
+     *
+     * @return the number of devices the command was queued for.
+     */
+    public int sendCommandStringToGroup(String group, String command){
+        final long sendTime = System.nanoTime();
+        return enqueueFrameToGroup(group, SerialProtocol.FrameTypes.STRING, command.getBytes(), sendTime,
+                FrameTransfer.NO_DEADLINE);
+    }
+
+    /**
+     * Queues an image for the primary device.  If the link drops part way through, the transfer
+     * resumes from the last packet the eyewear acknowledged once the connection is
+     * re-established.  The image is encoded in the background, so the array must not be
+     * modified after this call.
+     */
+    public boolean sendImage(byte[] image){
+        return sendImage(mBluetoothDeviceAddress, image);
+    }
+
+    public boolean sendImage(String address, byte[] image){
+        final long sendTime = System.nanoTime();
+        Log.d(TAG, "Add " + image.length + " byte image to BLE queue of " + address);
+        return enqueueFrame(address, SerialProtocol.FrameTypes.IMAGE, image, sendTime,
+                FrameTransfer.NO_DEADLINE);
+    }
+
+    /**
+     * Queues an image that is only worth showing for {@code validForMs}, see
+     * {@link #sendCommandString(String, String, long)}.  An image with a deadline is not
+     * journaled.
+     */
+    public boolean sendImage(String address, byte[] image, long validForMs){
+        final long sendTime = System.nanoTime();
+        Log.d(TAG, "Add " + image.length + " byte image to BLE queue of " + address
+                + ", valid for " + validForMs + " ms");
+        return enqueueFrame(address, SerialProtocol.FrameTypes.IMAGE, image, sendTime,
+                sendTime + TimeUnit.MILLISECONDS.toNanos(validForMs));
+    }
+
+    /**
+     * Queues an image for every device in a group, encoding it only once.
+     *
+     * @return the number of devices the image was queued for.
+     */
+    public int sendImageToGroup(String group, byte[] image){
+        final long sendTime = System.nanoTime();
+        return enqueueFrameToGroup(group, SerialProtocol.FrameTypes.IMAGE, image, sendTime,
+                FrameTransfer.NO_DEADLINE);
+    }
+
+    /**
+     * Starts streaming a blob of any size to a device in blocks, see {@link BulkTransfer}.
+     * Progress can be followed on the transfer; {@link #ACTION_BULK_TRANSFER_COMPLETE} is
+     * broadcast once the eyewear has acknowledged every block.
+     *
+     * @return false if there is no connection for the address or it is already running a bulk
+     *         transfer.
+     */
+    public boolean sendBulk(String address, BulkTransfer transfer){
+        EyewearConnection connection = address == null ? null : mConnections.get(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection for " + address);
+            return false;
+        }
+        Log.d(TAG, "Start " + transfer.getBlockCount() + " block bulk transfer to " + address);
+        return connection.startBulkTransfer(transfer);
+    }
+
+    // sendTime is when the public send call was made, the start of the frame's latency trace;
+    // deadline is the frame's System.nanoTime() deadline or FrameTransfer.NO_DEADLINE
+    private boolean enqueueFrame(String address, SerialProtocol.FrameTypes type, byte[] data, long sendTime,
+                                 long deadline){
+        if (!isValidPayload(type, data))
+            return false;
+        EyewearConnection connection = address == null ? null : mConnections.get(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection for " + address);
+            return false;
+        }
+        List<EyewearConnection> targets = new ArrayList<>(1);
+        targets.add(connection);
+        encodeAndQueue(targets, type, data, sendTime, deadline);
+        return true;
+    }
+
+    private int enqueueFrameToGroup(String group, SerialProtocol.FrameTypes type, byte[] data, long sendTime,
+                                    long deadline){
+        if (!isValidPayload(type, data))
+            return 0;
+        Set<String> members = mGroups.get(group);
+        if (members == null)
+            return 0;
+        List<EyewearConnection> targets = new ArrayList<>(members.size());
+        for (String address : members) {
+            EyewearConnection connection = mConnections.get(address);
+            if (connection != null)
+                targets.add(connection);
+            else
+                Log.w(TAG, "No connection for " + address);
+        }
+        if (!targets.isEmpty())
+            encodeAndQueue(targets, type, data, sendTime, deadline);
+        return targets.size();
+    }
+
+    // Checked before queuing so the send call can fail, the encoder thread has no one to tell
+    private static boolean isValidPayload(SerialProtocol.FrameTypes type, byte[] data){
+        if (data.length < 1 || data.length > SerialProtocol.MAX_DATA_LENGTH) {
+            Log.e(TAG, "Cannot send " + data.length + " byte " + type + " frame");
+            return false;
+        }
+        return true;
+    }
+
+    // Encodes the frame once on the encoder thread and queues it for every target.  Traces are
+    // started here, on the caller's thread, so they pick up the UI action that sent the frame.
+    private void encodeAndQueue(final List<EyewearConnection> targets, final SerialProtocol.FrameTypes type,
+                                final byte[] data, long sendTime, final long deadline){
+        final LatencyTracer.FrameTrace[] traces = new LatencyTracer.FrameTrace[targets.size()];
+        for (int i = 0; i < traces.length; i++) {
+            traces[i] = LatencyTracer.getInstance().startTrace(sendTime);
+        }
+        mFrameEncoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                FrameTransfer[] transfers;
+                try {
+                    transfers = createTransfers(type, data, traces, deadline);
+                } catch (ExceptionInInitializerError | RuntimeException e) {
+                    // payloads are checked before queuing, so this is a bug in the encoder;
+                    // log it rather than kill the encoder thread
+                    Log.e(TAG, "Cannot encode " + data.length + " byte " + type + " frame", e);
+                    return;
+                }
+                for (int i = 0; i < transfers.length; i++) {
+                    targets.get(i).enqueueTransfer(transfers[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Encodes a frame once and creates a transfer of it for each trace.  Runs on the encoder
+     * thread; LinkBenchmark builds its frames through here too.
+     */
+    static FrameTransfer[] createTransfers(SerialProtocol.FrameTypes type, byte[] data,
+                                           LatencyTracer.FrameTrace[] traces, long deadline){
+        EncodedFrame frame = ParallelFrameEncoder.encode(type, data);
+        FrameTransfer[] transfers = new FrameTransfer[traces.length];
+        for (int i = 0; i < traces.length; i++) {
+            transfers[i] = new FrameTransfer(frame);
+            transfers[i].setTrace(traces[i]);
+            transfers[i].setDeadline(deadline);
+        }
+        return transfers;
     }
 }
@@ -0,0 +1,177 @@
+package com.six15.eyeweardemo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Sends a blob of any size, e.g. firmware or an asset pack, as a series of fixed size blocks.
+ * Each block travels as its own BULK frame whose payload starts with a block header:
+ * <pre>
+ *   [blob id (4)][sequence (4)][block size (4)][blob length (4)][block data CRC32 (4)][data]
+ * </pre>
+ * The eyewear acknowledges every block it stores with a block acknowledge carrying the blob id
+ * and sequence number, in whatever order blocks complete.  Up to {@code window} blocks are
+ * outstanding at once (selective repeat), so the link keeps streaming while acknowledges come
+ * back, and a block that is not acknowledged within {@link #RESEND_TIMEOUT_NANOS} of its last
+ * packet going out is sent again.  A block is never queued twice at once: the resend timer
+ * starts from {@link #onBlockSent(int, long)}, so a block waiting behind other frames is not
+ * overdue however long it waits.
+ *
+ * <p>Blocks share the connection's frame queue, pacing and write type with ordinary frames,
+ * so a transfer streams at whatever rate the autotuner has settled on for the link.  They
+ * have no deadline, so frames sent with one are scheduled ahead of them.
+ *
+ * <p>Methods are synchronized; acknowledges arrive on the RX thread while blocks are queued
+ * from the sender.
+ */
+public class BulkTransfer {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final int DEFAULT_WINDOW = 8;
+    static final int BLOCK_HEADER_SIZE = 20;
+    static final long RESEND_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    private static final AtomicInteger sNextBlobId = new AtomicInteger((int) System.currentTimeMillis());
+
+    private final int mBlobId;
+    private final byte[] mBlob;
+    private final int mBlockSize;
+    private final int mBlockCount;
+    private final int mWindow;
+
+    private final BitSet mAcknowledged;
+    // when the last packet of each block last went out, valid for blocks that are not queued
+    private final long[] mSentAt;
+    // blocks handed out by nextBlocks whose last packet has not gone out yet
+    private final BitSet mQueued;
+    private int mNextUnsent = 0;
+    private int mInFlight = 0;
+    private int mAcknowledgedCount = 0;
+    private int mResends = 0;
+
+    public BulkTransfer(byte[] blob) {
+        this(blob, DEFAULT_BLOCK_SIZE, DEFAULT_WINDOW);
+    }
+
+    public BulkTransfer(byte[] blob, int blockSize, int window) {
+        if (blob.length == 0 || window < 1
+                || blockSize < 1 || blockSize > SerialProtocol.MAX_DATA_LENGTH - BLOCK_HEADER_SIZE)
+            throw new IllegalArgumentException("empty blob, bad block size or window");
+        mBlobId = sNextBlobId.getAndIncrement();
+        mBlob = blob;
+        mBlockSize = blockSize;
+        mBlockCount = (blob.length + blockSize - 1) / blockSize;
+        mWindow = window;
+        mAcknowledged = new BitSet(mBlockCount);
+        mSentAt = new long[mBlockCount];
+        mQueued = new BitSet(mBlockCount);
+    }
+
+    public int getBlobId() {
+        return mBlobId;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    public synchronized int getAcknowledgedCount() {
+        return mAcknowledgedCount;
+    }
+
+    public synchronized int getResendCount() {
+        return mResends;
+    }
+
+    public synchronized boolean isComplete() {
+        return mAcknowledgedCount == mBlockCount;
+    }
+
+    /**
+     * Picks the blocks to queue now: sent but unacknowledged blocks whose resend timeout has
+     * passed, then new blocks while fewer than {@code window} are outstanding.  The returned
+     * blocks count as queued until {@link #onBlockSent(int, long)}.
+     */
+    public synchronized List<Integer> nextBlocks(long nowNanos) {
+        List<Integer> blocks = new ArrayList<>();
+        for (int seq = mAcknowledged.nextClearBit(0); seq < mNextUnsent; seq = mAcknowledged.nextClearBit(seq + 1)) {
+            if (!mQueued.get(seq) && nowNanos - mSentAt[seq] >= RESEND_TIMEOUT_NANOS) {
+                mQueued.set(seq);
+                mResends++;
+                blocks.add(seq);
+            }
+        }
+        while (mInFlight < mWindow && mNextUnsent < mBlockCount) {
+            mQueued.set(mNextUnsent);
+            mInFlight++;
+            blocks.add(mNextUnsent++);
+        }
+        return blocks;
+    }
+
+    /**
+     * Records that the last packet of block {@code seq} went out at {@code nowNanos}, which
+     * starts its resend timer.
+     */
+    public synchronized void onBlockSent(int seq, long nowNanos) {
+        if (seq < 0 || seq >= mNextUnsent)
+            return;
+        mQueued.clear(seq);
+        mSentAt[seq] = nowNanos;
+    }
+
+    /**
+     * Records a block acknowledge.  Acknowledges may arrive in any order and more than once.
+     *
+     * @return true if the block had not been acknowledged before.
+     */
+    public synchronized boolean onBlockAcknowledged(int seq) {
+        if (seq < 0 || seq >= mNextUnsent || mAcknowledged.get(seq))
+            return false;
+        mAcknowledged.set(seq);
+        mAcknowledgedCount++;
+        mInFlight--;
+        return true;
+    }
+
+    /**
+     * @return the sequence number acknowledged by {@code packet}, or -1 if it is not a block
+     *         acknowledge of this blob.
+     */
+    public int parseAcknowledge(byte[] packet) {
+        return SerialProtocol.parseBlockAcknowledge(packet, mBlobId);
+    }
+
+    /**
+     * Encodes block {@code seq} as a BULK frame, ready to queue.
+     */
+    public FrameTransfer createBlockTransfer(int seq) {
+        FrameTransfer transfer = new FrameTransfer(encodeBlock(seq));
+        transfer.setBulkBlock(this, seq);
+        return transfer;
+    }
+
+    /**
+     * Encodes block {@code seq} as a BULK frame.
+     */
+    public EncodedFrame encodeBlock(int seq) {
+        int offset = seq * mBlockSize;
+        int length = Math.min(mBlockSize, mBlob.length - offset);
+        CRC32 crc = new CRC32();
+        crc.update(mBlob, offset, length);
+
+        ByteBuffer payload = ByteBuffer.allocate(BLOCK_HEADER_SIZE + length);
+        payload.putInt(mBlobId);
+        payload.putInt(seq);
+        payload.putInt(mBlockSize);
+        payload.putInt(mBlob.length);
+        payload.putInt((int) crc.getValue());
+        payload.put(mBlob, offset, length);
+        return EncodedFrame.encode(SerialProtocol.FrameTypes.BULK, payload.array());
+    }
+}
@@ -0,0 +1,130 @@
+package com.six15.eyeweardemo;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection state of one eyewear, shared by the GATT binder thread, the writer and the UI
+ * without locks.  The state is an atomic int that only moves along the edges of a fixed
+ * transition table, each move a compare-and-set, and every successful move is reported to the
+ * listeners on the thread that made it.
+ *
+ * <pre>
+ *   DISCONNECTED -> CONNECTING -> CONNECTED -> READY
+ *        ^              |             |          |
+ *        +---------- DISCONNECTING <--+----------+
+ * </pre>
+ * READY means services are discovered and packets may be written.  Any state can drop straight
+ * to DISCONNECTED when the link is lost, and DISCONNECTED can go straight to CONNECTED when
+ * the stack reconnects by itself.
+ */
+public class ConnectionStateMachine {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_READY = 3;
+    public static final int STATE_DISCONNECTING = 4;
+
+    private static final String[] STATE_NAMES = {
+            "DISCONNECTED", "CONNECTING", "CONNECTED", "READY", "DISCONNECTING"
+    };
+
+    // ALLOWED[from][to]
+    private static final boolean[][] ALLOWED = {
+            //            DISC   CONNECTING CONNECTED READY  DISCONNECTING
+            /* DISC */  { false, true,      true,     false, false },
+            /* CONNG */ { true,  false,     true,     false, true  },
+            /* CONND */ { true,  false,     false,    true,  true  },
+            /* READY */ { true,  false,     false,    false, true  },
+            /* DISCG */ { true,  false,     false,    false, false },
+    };
+
+    public interface Listener {
+        /**
+         * Called after every transition, on the thread that made it.  Transitions made on
+         * different threads at the same time may be reported out of order; listeners that care
+         * read {@link #getState()} again.
+         */
+        void onStateChanged(int from, int to);
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_DISCONNECTED);
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    public static String name(int state) {
+        return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : "UNKNOWN(" + state + ")";
+    }
+
+    public static boolean isAllowed(int from, int to) {
+        return ALLOWED[from][to];
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * @return true while there is a GATT connection, whether or not services are discovered.
+     */
+    public boolean isConnected() {
+        int state = mState.get();
+        return state == STATE_CONNECTED || state == STATE_READY;
+    }
+
+    public boolean isReady() {
+        return mState.get() == STATE_READY;
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} if the state is still {@code from}.
+     *
+     * @return false if the state was something else or the transition is not allowed.
+     */
+    public boolean transition(int from, int to) {
+        if (!ALLOWED[from][to] || !mState.compareAndSet(from, to))
+            return false;
+        notifyListeners(from, to);
+        return true;
+    }
+
+    /**
+     * Moves to {@code to} from whatever the state currently is, for events the stack reports
+     * as facts, like a disconnect.
+     *
+     * @return the state moved from, {@code to} itself if the state already was {@code to}, or
+     *         -1 if the transition from the current state is not allowed.
+     */
+    public int moveTo(int to) {
+        while (true) {
+            int from = mState.get();
+            if (from == to)
+                return to;
+            if (!ALLOWED[from][to])
+                return -1;
+            if (mState.compareAndSet(from, to)) {
+                notifyListeners(from, to);
+                return from;
+            }
+        }
+    }
+
+    private void notifyListeners(int from, int to) {
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(from, to);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name(mState.get());
+    }
+}
@@ -0,0 +1,92 @@
+package com.six15.eyeweardemo;
+
+/**
+ * What we remember about an eyewear between sessions.  Serialized to JSON with Gson by
+ * {@link DeviceProfileStore}, so fields are plain values.
+ */
+public class DeviceProfile {
+
+    public static final int DEFAULT_MTU = 23;
+    // asked for on the first connection; what the eyewear grants is stored
+    public static final int PREFERRED_MTU = 247;
+
+    private String address;
+    private String name;
+    private int mtu = DEFAULT_MTU;
+    private int connectionPriority = -1;
+    private long pairedTime;
+    private long lastSeen;
+
+    public DeviceProfile(String address) {
+        this.address = address;
+    }
+
+    DeviceProfile(DeviceProfile other) {
+        address = other.address;
+        name = other.name;
+        mtu = other.mtu;
+        connectionPriority = other.connectionPriority;
+        pairedTime = other.pairedTime;
+        lastSeen = other.lastSeen;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the last negotiated ATT MTU, DEFAULT_MTU if none was negotiated.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * @return the last requested connection priority, -1 if never set.
+     */
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    public void setConnectionPriority(int connectionPriority) {
+        this.connectionPriority = connectionPriority;
+    }
+
+    /**
+     * @return whether the user paired the device, as opposed to only connecting to it.
+     */
+    public boolean isPaired() {
+        return pairedTime > 0;
+    }
+
+    /**
+     * @return when the device was paired, 0 if it is not.
+     */
+    public long getPairedTime() {
+        return pairedTime;
+    }
+
+    public void setPairedTime(long pairedTime) {
+        this.pairedTime = pairedTime;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+}
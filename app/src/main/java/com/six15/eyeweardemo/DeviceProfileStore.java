@@ -0,0 +1,190 @@
+package com.six15.eyeweardemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of eyewear profiles.  A profile holds the link settings negotiated with any
+ * device we connected to; only profiles with a pairing time count as paired devices, and
+ * forgetting a device clears that without dropping its link settings.
+ *
+ * <p>Everything is loaded from SharedPreferences
+ * once; reads are served from memory and every change is written back with
+ * {@link SharedPreferences.Editor#apply()}, so no caller waits on disk I/O.  Each profile is
+ * stored as JSON under its own key, so an update only rewrites that profile.
+ */
+public class DeviceProfileStore {
+
+    private static final String PROFILE_PREFIX = "SIX15_PROFILE_";
+
+    private static DeviceProfileStore sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final Gson mGson = new Gson();
+    private final Map<String, DeviceProfile> mProfiles = new HashMap<>();
+
+    private static final Comparator<DeviceProfile> MOST_RECENT_FIRST = new Comparator<DeviceProfile>() {
+        @Override
+        public int compare(DeviceProfile lhs, DeviceProfile rhs) {
+            long l = Math.max(lhs.getLastSeen(), lhs.getPairedTime());
+            long r = Math.max(rhs.getLastSeen(), rhs.getPairedTime());
+            return l > r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    public static synchronized DeviceProfileStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DeviceProfileStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DeviceProfileStore(Context context) {
+        this(context.getSharedPreferences(ApplicationPreferences.PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    DeviceProfileStore(SharedPreferences preferences) {
+        mPreferences = preferences;
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(PROFILE_PREFIX) || !(entry.getValue() instanceof String))
+                continue;
+            try {
+                DeviceProfile profile = mGson.fromJson((String) entry.getValue(), DeviceProfile.class);
+                if (profile != null && profile.getAddress() != null)
+                    mProfiles.put(profile.getAddress(), profile);
+            } catch (JsonSyntaxException e) {
+                // ignore a corrupt profile, it is overwritten on the next save
+            }
+        }
+
+        // single paired address written by earlier versions
+        String legacy = mPreferences.getString(ApplicationPreferences.PREFS_KEY, null);
+        if (legacy != null && !mProfiles.containsKey(legacy)) {
+            DeviceProfile profile = new DeviceProfile(legacy);
+            profile.setPairedTime(System.currentTimeMillis());
+            mProfiles.put(legacy, profile);
+            persist(profile);
+        }
+    }
+
+    /**
+     * @return a copy of the profile, or null if nothing is stored for the device.
+     */
+    public synchronized DeviceProfile getProfile(String address) {
+        DeviceProfile profile = mProfiles.get(address);
+        return profile == null ? null : new DeviceProfile(profile);
+    }
+
+    /**
+     * @return copies of all paired profiles, most recently used first.
+     */
+    public synchronized List<DeviceProfile> getPairedDevices() {
+        List<DeviceProfile> profiles = new ArrayList<>(mProfiles.size());
+        for (DeviceProfile profile : mProfiles.values()) {
+            if (profile.isPaired())
+                profiles.add(new DeviceProfile(profile));
+        }
+        Collections.sort(profiles, MOST_RECENT_FIRST);
+        return profiles;
+    }
+
+    /**
+     * @return the address of the most recently used paired device, or null.
+     */
+    public synchronized String getPrimaryAddress() {
+        DeviceProfile latest = null;
+        for (DeviceProfile profile : mProfiles.values()) {
+            if (!profile.isPaired())
+                continue;
+            if (latest == null || MOST_RECENT_FIRST.compare(profile, latest) < 0)
+                latest = profile;
+        }
+        return latest == null ? null : latest.getAddress();
+    }
+
+    public synchronized boolean isPaired(String address) {
+        DeviceProfile profile = mProfiles.get(address);
+        return profile != null && profile.isPaired();
+    }
+
+    public synchronized void savePairedDevice(String address, String name) {
+        DeviceProfile profile = getOrCreate(address);
+        if (name != null)
+            profile.setName(name);
+        profile.setPairedTime(System.currentTimeMillis());
+        persist(profile);
+    }
+
+    public synchronized void updateLastSeen(String address, long time) {
+        DeviceProfile profile = mProfiles.get(address);
+        if (profile == null)
+            return;
+        profile.setLastSeen(time);
+        persist(profile);
+    }
+
+    /**
+     * Stores the MTU negotiated with a device.  Like the connection priority it is recorded
+     * for any device we connected to, paired or not.
+     */
+    public synchronized void updateMtu(String address, int mtu) {
+        DeviceProfile profile = getOrCreate(address);
+        if (profile.getMtu() == mtu)
+            return;
+        profile.setMtu(mtu);
+        persist(profile);
+    }
+
+    public synchronized void updateConnectionPriority(String address, int priority) {
+        DeviceProfile profile = getOrCreate(address);
+        if (profile.getConnectionPriority() == priority)
+            return;
+        profile.setConnectionPriority(priority);
+        persist(profile);
+    }
+
+    /**
+     * Forgets the pairing; the device's link settings are kept.
+     */
+    public synchronized void removePairedDevice(String address) {
+        DeviceProfile profile = mProfiles.get(address);
+        if (profile == null || !profile.isPaired())
+            return;
+        profile.setPairedTime(0);
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putString(PROFILE_PREFIX + address, mGson.toJson(profile));
+        if (address.equals(mPreferences.getString(ApplicationPreferences.PREFS_KEY, null)))
+            editor.remove(ApplicationPreferences.PREFS_KEY);
+        editor.apply();
+    }
+
+    public synchronized void clear() {
+        mProfiles.clear();
+        mPreferences.edit().clear().apply();
+    }
+
+    private DeviceProfile getOrCreate(String address) {
+        DeviceProfile profile = mProfiles.get(address);
+        if (profile == null) {
+            profile = new DeviceProfile(address);
+            mProfiles.put(address, profile);
+        }
+        return profile;
+    }
+
+    private void persist(DeviceProfile profile) {
+        mPreferences.edit()
+                .putString(PROFILE_PREFIX + profile.getAddress(), mGson.toJson(profile))
+                .apply();
+    }
+}
@@ -10,6 +10,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.support.v7.widget.Toolbar;
@@ -26,6 +27,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class DeviceScanActivity extends AppCompatActivity {
 
@@ -40,6 +42,26 @@ public class DeviceScanActivity extends AppCompatActivity {
     private ListView mListView = null;
     private Handler mHandler;
 
+    // Scan results are collected as they arrive but the list is only redrawn at this rate.
+    private static final long LIST_REFRESH_INTERVAL = 250;
+    // devices that have not advertised for this long leave the list
+    private static final long DEVICE_TIMEOUT = 10000;
+    private final ScanResultStore mScanResults = new ScanResultStore();
+    private boolean mRefreshPending = false;
+    private long mLastRefresh = 0;
+
+    private final Runnable mRefreshList = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshPending = false;
+            mLastRefresh = SystemClock.uptimeMillis();
+            mScanResults.expire(SystemClock.elapsedRealtime() - DEVICE_TIMEOUT);
+            if (mLeDeviceListAdapter != null) {
+                mLeDeviceListAdapter.refresh();
+            }
+        }
+    };
+
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -54,8 +76,8 @@ public class DeviceScanActivity extends AppCompatActivity {
             if(mDeviceAddress != null) {
 
                 Log.d(TAG, "Trying to Auto-Connect to Paired Device: " + mDeviceAddress);
-                // Automatically connects to the device upon successful start-up initialization.
-                mBluetoothLeService.connect(mDeviceAddress);
+                // Automatically connects to the device as soon as the targeted scan sees it.
+                mBluetoothLeService.scanForDevice(mDeviceAddress);
                 // go to main activity
             }else {
                 mBluetoothLeService.scanLeDevice(true);
@@ -131,6 +153,10 @@ public class DeviceScanActivity extends AppCompatActivity {
                 invalidateOptionsMenu();
             } else if(BluetoothLeService.ACTION_BLE_SCAN_STOP.equals(action)){
                 invalidateOptionsMenu();
+                // nothing else triggers a refresh once advertisements stop coming in
+                if (mScanResults.expire(SystemClock.elapsedRealtime() - DEVICE_TIMEOUT) > 0) {
+                    scheduleListRefresh();
+                }
             }else if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
                 mConnecting = false;
@@ -159,20 +185,27 @@ public class DeviceScanActivity extends AppCompatActivity {
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
             } else if (BluetoothLeService.ACTION_DEVICE_FOUND.equals(action)) {
                 final BluetoothDevice device = intent.getParcelableExtra("BLE_DEVICE");
-                Log.d(TAG, "Device Found " + device.getAddress());
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mLeDeviceListAdapter.addDevice(device);
-                        mLeDeviceListAdapter.notifyDataSetChanged();
-                    }
-                });
+                final int rssi = intent.getIntExtra(BluetoothLeService.EXTRA_RSSI, 0);
+                if (mScanResults.update(device, rssi, SystemClock.elapsedRealtime())) {
+                    Log.d(TAG, "Device Found " + device.getAddress());
+                }
+                scheduleListRefresh();
             } else if (BluetoothLeService.ACTION_DATA_WRITE_COMPLETED.equals(action)) {
 
             }
         }
     };
 
+    // Batches list updates so a flood of advertisements redraws the list at most once per
+    // LIST_REFRESH_INTERVAL.  Runs on the UI thread, the receiver is called there.
+    private void scheduleListRefresh() {
+        if (mRefreshPending || !mScanResults.isDirty())
+            return;
+        mRefreshPending = true;
+        long delay = mLastRefresh + LIST_REFRESH_INTERVAL - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mRefreshList, delay > 0 ? delay : 0);
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -218,6 +251,8 @@ public class DeviceScanActivity extends AppCompatActivity {
         Log.d(TAG, "onPause");
         mBluetoothLeService.scanLeDevice(false);
         unregisterReceiver(mGattUpdateReceiver);
+        mHandler.removeCallbacks(mRefreshList);
+        mRefreshPending = false;
         mLeDeviceListAdapter.clear();
         invalidateOptionsMenu();
     }
@@ -233,9 +268,9 @@ public class DeviceScanActivity extends AppCompatActivity {
         mListView.setAdapter(mLeDeviceListAdapter);
 
         if (mBluetoothLeService != null && mDeviceAddress != null) {
-            if(!mBluetoothLeService.isConnected()){
-                final boolean result = mBluetoothLeService.connect(mDeviceAddress);
-                Log.d(TAG, "Connect request result=" + result);
+            if(!mBluetoothLeService.isConnected() && !mBluetoothLeService.isScanning()){
+                Log.d(TAG, "Scanning for paired device");
+                mBluetoothLeService.scanForDevice(mDeviceAddress);
             }
         }else if(mBluetoothLeService != null && !mBluetoothLeService.isConnected()){
             mBluetoothLeService.scanLeDevice(true);
@@ -243,8 +278,8 @@ public class DeviceScanActivity extends AppCompatActivity {
             // go to main
             BluetoothDevice dev = mBluetoothLeService.getConnectedDevice();
             if(dev != null) {
-                mLeDeviceListAdapter.addDevice(dev);
-                mLeDeviceListAdapter.notifyDataSetChanged();
+                mScanResults.update(dev, 0, SystemClock.elapsedRealtime());
+                mLeDeviceListAdapter.refresh();
             }
         }
         invalidateOptionsMenu();
@@ -276,29 +311,31 @@ public class DeviceScanActivity extends AppCompatActivity {
         return intentFilter;
     }
 
-    // Adapter for holding devices found through scanning.
+    // Adapter for holding devices found through scanning.  Shows a snapshot of mScanResults
+    // ordered by signal strength that is only updated by refresh().
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private List<ScanResultStore.ScanEntry> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanResultStore.ScanEntry>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        public void refresh() {
+            mScanResults.copySorted(mLeDevices);
+            notifyDataSetChanged();
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).getDevice();
         }
 
         public void clear() {
+            mScanResults.clear();
             mLeDevices.clear();
+            notifyDataSetChanged();
         }
 
         @Override
@@ -330,7 +367,7 @@ public class DeviceScanActivity extends AppCompatActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            BluetoothDevice device = mLeDevices.get(i).getDevice();
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
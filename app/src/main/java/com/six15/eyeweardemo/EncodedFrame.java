@@ -0,0 +1,97 @@
+package com.six15.eyeweardemo;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A frame packetized once by {@link SerialProtocol}: header, data packets and footer.  Instances
+ * are immutable, so the same frame can sit in the transmit queues of several eyewear
+ * connections at once, each of which tracks its own position through a {@link FrameTransfer}.
+ * Packet arrays are shared by reference and must never be modified after encoding.
+ */
+public final class EncodedFrame {
+
+    private final SerialProtocol.FrameTypes mType;
+    private final int mDataLength;
+    private final long mCrc;
+    private final byte[][] mPackets;
+
+    EncodedFrame(SerialProtocol.FrameTypes type, int dataLength, long crc, byte[][] packets) {
+        mType = type;
+        mDataLength = dataLength;
+        mCrc = crc;
+        mPackets = packets;
+    }
+
+    public static EncodedFrame encode(SerialProtocol.FrameTypes type, byte[] data) {
+        SerialProtocol protoHelper = new SerialProtocol(type, data.length);
+        byte[][] packets = new byte[protoHelper.getmTotal_packets() + 2][];
+        int index = 0;
+        while (protoHelper.hasNextPacket()) {
+            packets[index++] = protoHelper.getNextPacket(data);
+        }
+        return new EncodedFrame(type, data.length, protoHelper.get_Data_crc(), packets);
+    }
+
+    /**
+     * Rebuilds a frame from packets produced by {@link #encode}, reading type, length and CRC
+     * back out of the header packet.
+     */
+    public static EncodedFrame fromPackets(byte[][] packets) {
+        ByteBuffer header = ByteBuffer.wrap(packets[0]);
+        SerialProtocol.FrameTypes type = SerialProtocol.fromTypeCode(header.get(2));
+        return new EncodedFrame(type, header.getInt(3), header.getInt(7) & 0xFFFFFFFFL, packets);
+    }
+
+    public SerialProtocol.FrameTypes getType() {
+        return mType;
+    }
+
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    public long getCrc() {
+        return mCrc;
+    }
+
+    /**
+     * @return header, data and footer packets.
+     */
+    public int getPacketCount() {
+        return mPackets.length;
+    }
+
+    public int getDataPacketCount() {
+        return mPackets.length - 2;
+    }
+
+    public byte[] getPacket(int index) {
+        return mPackets[index];
+    }
+
+    /**
+     * Returns a read-only view of the packets starting at {@code fromIndex}, without copying.
+     */
+    public List<byte[]> packets(final int fromIndex) {
+        return new AbstractList<byte[]>() {
+            @Override
+            public byte[] get(int location) {
+                return mPackets[fromIndex + location];
+            }
+
+            @Override
+            public int size() {
+                return mPackets.length - fromIndex;
+            }
+        };
+    }
+
+    /**
+     * Builds the RESUME header that continues this frame at data packet {@code packetIndex}.
+     */
+    public byte[] buildResumeHeader(int packetIndex) {
+        return SerialProtocol.buildResumeHeader(mType, mDataLength, mCrc, packetIndex);
+    }
+}
@@ -0,0 +1,852 @@
+package com.six15.eyeweardemo;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One eyewear connection owned by {@link BluetoothLeService}.  Each connection has its own GATT
+ * handle, connection state, frame queue and writer thread, so several headsets can be driven
+ * at once without their frames interleaving.
+ */
+public class EyewearConnection {
+    private final static String TAG = "EyewearConnection";
+
+    private final BluetoothLeService mService;
+    private final String mAddress;
+    private volatile BluetoothGatt mBluetoothGatt;
+    private BluetoothAdapter mAdapter;
+    // written by the binder thread and connect/disconnect, read from everywhere
+    private final ConnectionStateMachine mState = new ConnectionStateMachine();
+
+    // frames waiting for the writer; they stay here while disconnected
+    private final FrameQueue mFrameQueue = new FrameQueue();
+    // every GATT operation of this connection goes through here, one at a time
+    private final TransportMetrics mMetrics = new TransportMetrics();
+    private final GattOperationQueue mGattQueue = new GattOperationQueue(mMetrics);
+    private final LinkAutotuner mTuner = new LinkAutotuner();
+    // runs while connected; keeps a frame interrupted by a disconnect so it can be resumed
+    private final FrameWriter mWriter;
+    // TX characteristic, resolved once per service discovery
+    private BluetoothGattCharacteristic mSendDataChar = null;
+
+    // RX notifications, copied on the binder thread and handled on mRxThread
+    private static final int RX_RING_SLOTS = 64;
+    private final NotificationRing mRxRing = new NotificationRing(RX_RING_SLOTS, NotificationRing.MAX_VALUE_SIZE);
+    private Thread mRxThread = null;
+
+    // bulk transfer in progress; its blocks share mFrameQueue, pacing and write type with
+    // ordinary frames
+    private static final long BULK_CHECK_INTERVAL_MS = 1000;
+    private volatile BulkTransfer mBulk = null;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mBulkCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mBulk != null) {
+                // re-queues blocks whose acknowledge is overdue
+                pumpBulk();
+                mHandler.postDelayed(this, BULK_CHECK_INTERVAL_MS);
+            }
+        }
+    };
+
+    // optional crash-safe copy of the queued frames
+    private volatile OutboundJournal mJournal = null;
+    // the journal is not thread safe; senders only contend on this when journaling is on
+    private final Object mJournalLock = new Object();
+    private volatile long mPendingCheckpoint = -1;
+
+    // Write-stall recovery: a packet write gets WRITE_STALL_TIMEOUT_MS for its callback.  It is
+    // not written again, the packet may have gone out with only the callback late; instead the
+    // GATT client is reset and reconnected and the frame resumed from what the eyewear
+    // acknowledged, at most MAX_CONSECUTIVE_RESETS times in a row before giving up.
+    static final long WRITE_STALL_TIMEOUT_MS = 1000;
+    static final int MAX_CONSECUTIVE_RESETS = 3;
+    static final long RESET_RECONNECT_DELAY_MS = 500;
+    private volatile int mConsecutiveResets = 0;
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Reconnecting to " + mAddress + " after GATT reset");
+            if (mAdapter != null) {
+                connect(mAdapter);
+            }
+        }
+    };
+
+    // heart rate notifications, aggregated on the binder thread
+    private final SensorAggregator mHeartRate = new SensorAggregator();
+
+    // optional record of every TX and RX packet
+    private volatile PacketCapture mCapture = null;
+
+    // frame whose footer write is in flight, then the last frame waiting for its final acknowledge
+    private volatile FrameTransfer mFooterTransfer = null;
+    private FrameTransfer mAckTransfer = null;
+
+    EyewearConnection(BluetoothLeService service, String address) {
+        mService = service;
+        mAddress = address;
+        mWriter = new FrameWriter(TAG + " TX " + address, mFrameQueue, mTuner, new GattLink());
+        mState.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                Log.d(TAG, mAddress + " " + ConnectionStateMachine.name(from) + " -> "
+                        + ConnectionStateMachine.name(to));
+                // the writer only runs while packets can be written
+                if (to == ConnectionStateMachine.STATE_READY) {
+                    startWriter();
+                } else if (from == ConnectionStateMachine.STATE_READY) {
+                    stopWriter();
+                }
+            }
+        });
+    }
+
+    // Implements callback methods for GATT events that the app cares about.  For example,
+    // connection change and services discovered.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                if (mState.moveTo(ConnectionStateMachine.STATE_CONNECTED) < 0) {
+                    Log.w(TAG, "Connected callback while " + mState);
+                    return;
+                }
+                mService.broadcastUpdate(BluetoothLeService.ACTION_GATT_CONNECTED, mAddress);
+                restoreLinkSettings(gatt);
+
+                Log.i(TAG, "Connected to GATT server " + mAddress);
+                // Attempts to discover services after successful connection.
+                discoverServices();
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mState.moveTo(ConnectionStateMachine.STATE_DISCONNECTED);
+                mSendDataChar = null;
+                Log.i(TAG, "Disconnected from GATT server " + mAddress);
+                mGattQueue.clear("disconnected");
+                flushCapture();
+                mService.broadcastUpdate(BluetoothLeService.ACTION_GATT_DISCONNECTED, mAddress);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mGattQueue.complete(GattOperationQueue.OP_DISCOVER_SERVICES);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mSendDataChar = findSendCharacteristic(gatt);
+                mService.broadcastUpdate(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED, mAddress);
+                if (mSendDataChar == null) {
+                    Log.e(TAG, "Fatal Error cannot retrieve characteristic from service");
+                } else {
+                    mTuner.setNoResponseSupported(supportsNoResponse(mSendDataChar));
+                    // starts the writer, which resumes a frame interrupted by a disconnect first
+                    mState.transition(ConnectionStateMachine.STATE_CONNECTED, ConnectionStateMachine.STATE_READY);
+                }
+            } else {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (!mGattQueue.complete(GattOperationQueue.OP_READ, characteristic.getUuid()))
+                return;
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mService.broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE, characteristic, mAddress);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (!mGattQueue.complete(GattOperationQueue.OP_WRITE_DESCRIPTOR, descriptor.getUuid()))
+                return;
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onDescriptorWrite received: " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status){
+            // starts any control operation queued behind this write before the next packet; a
+            // late callback for a write that already failed must not release the writer again
+            if (!mGattQueue.complete(GattOperationQueue.OP_WRITE, characteristic.getUuid())) {
+                Log.w(TAG, "Ignoring late write callback for " + characteristic.getUuid());
+                return;
+            }
+            final long now = System.nanoTime();
+            final boolean packetWrite = Six15GattAttributes.UUID_SIX15_DATA_TX.equals(characteristic.getUuid());
+            if (packetWrite) {
+                mTuner.onWriteCompleted(now, status == BluetoothGatt.GATT_SUCCESS);
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (packetWrite) {
+                    mConsecutiveResets = 0;
+                    commitJournal();
+                    onFooterWritten(now);
+                }
+                mService.broadcastUpdate(BluetoothLeService.ACTION_DATA_WRITE_COMPLETED, characteristic, mAddress);
+
+            } else {
+                Log.w(TAG, "onCharacteristicWrite received: " + status);
+            }
+
+            if (packetWrite) {
+                mWriter.onWriteDone();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mGattQueue.complete(GattOperationQueue.OP_REQUEST_MTU);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                DeviceProfileStore.getInstance(mService).updateMtu(mAddress, mtu);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            if (Six15GattAttributes.UUID_SIX15_DATA_RX.equals(characteristic.getUuid())) {
+                // copy and return; the RX thread parses and broadcasts it
+                final PacketCapture capture = mCapture;
+                if (capture != null) {
+                    capture.record(PacketCapture.DIRECTION_RX, System.nanoTime(), characteristic.getValue());
+                }
+                if (!mRxRing.offer(characteristic.getValue())) {
+                    Log.w(TAG, "RX ring full, dropped notification");
+                }
+                return;
+            }
+            if (Six15GattAttributes.UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
+                onHeartRate(characteristic.getValue());
+                return;
+            }
+            mService.broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE, characteristic, mAddress);
+        }
+    };
+
+    private void onHeartRate(byte[] value) {
+        final int heartRate = SensorAggregator.parseHeartRate(value);
+        if (heartRate < 0) {
+            Log.w(TAG, "Malformed heart rate measurement from " + mAddress);
+            return;
+        }
+        final long now = System.nanoTime();
+        mHeartRate.record(now, heartRate);
+        final String summary = mHeartRate.pollOverlay(now);
+        if (summary != null) {
+            mService.onVitalsUpdated(mAddress, summary);
+        }
+    }
+
+    // Re-applies the connection priority of the last connection to this device, or asks for a
+    // high priority on the first one; the priority is stored once the stack accepts it.
+    //
+    // The MTU is only asked for until the eyewear has granted the preferred one, and the grant
+    // stored in onMtuChanged.  SerialProtocol packets are 20 bytes whatever the MTU, so the
+    // stored value is informational and a reconnect skips the exchange.
+    private void restoreLinkSettings(BluetoothGatt gatt) {
+        final DeviceProfileStore profiles = DeviceProfileStore.getInstance(mService);
+        profiles.updateLastSeen(mAddress, System.currentTimeMillis());
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+        DeviceProfile profile = profiles.getProfile(mAddress);
+        if (profile == null)
+            profile = new DeviceProfile(mAddress);
+        final int priority = profile.getConnectionPriority() >= 0
+                ? profile.getConnectionPriority() : BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        mGattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_CONNECTION_PRIORITY) {
+            @Override
+            protected boolean execute() {
+                BluetoothGatt gatt = mBluetoothGatt;
+                if (gatt == null || !gatt.requestConnectionPriority(priority))
+                    return false;
+                profiles.updateConnectionPriority(mAddress, priority);
+                return true;
+            }
+        });
+        if (profile.getMtu() >= DeviceProfile.PREFERRED_MTU)
+            return;
+        final int mtu = DeviceProfile.PREFERRED_MTU;
+        mGattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_REQUEST_MTU) {
+            @Override
+            protected boolean execute() {
+                BluetoothGatt gatt = mBluetoothGatt;
+                return gatt != null && gatt.requestMtu(mtu);
+            }
+        });
+    }
+
+    private void discoverServices() {
+        mGattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_DISCOVER_SERVICES) {
+            @Override
+            protected boolean execute() {
+                BluetoothGatt gatt = mBluetoothGatt;
+                boolean started = gatt != null && gatt.discoverServices();
+                Log.i(TAG, "Attempting to start service discovery:" + started);
+                return started;
+            }
+        });
+    }
+
+    /**
+     * @return the autotuner's current choice of rate and write type for this link.
+     */
+    public LinkAutotuner getLinkTuner() {
+        return mTuner;
+    }
+
+    public TransportMetrics getTransportMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets the packet pacing of this link.
+     *
+     * @param packetsPerSecond sustained write rate, or 0 to follow the autotuner.
+     * @param burst packets that may go out back to back after the link was idle.
+     */
+    public void setPacing(double packetsPerSecond, int burst) {
+        mWriter.setPacing(packetsPerSecond, burst);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public boolean isConnected() {
+        return mState.isConnected();
+    }
+
+    /**
+     * @return this connection's state; add a listener to follow it without polling.
+     */
+    public ConnectionStateMachine getStateMachine() {
+        return mState;
+    }
+
+    public BluetoothDevice getDevice() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt != null && mState.isConnected()) {
+            return gatt.getDevice();
+        }
+        return null;
+    }
+
+    /**
+     * Connects to the GATT server, reusing the existing BluetoothGatt when there is one.
+     *
+     * @return Return true if the connection is initiated successfully.
+     */
+    boolean connect(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+        if (!mState.transition(ConnectionStateMachine.STATE_DISCONNECTED, ConnectionStateMachine.STATE_CONNECTING)) {
+            Log.d(TAG, "Not connecting, " + mAddress + " is " + mState);
+            return mState.getState() != ConnectionStateMachine.STATE_DISCONNECTING;
+        }
+
+        // Previously connected device.  Try to reconnect.
+        if (mBluetoothGatt != null) {
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            if (mBluetoothGatt.connect()) {
+                return true;
+            } else {
+                mState.transition(ConnectionStateMachine.STATE_CONNECTING, ConnectionStateMachine.STATE_DISCONNECTED);
+                return false;
+            }
+        }
+
+        final BluetoothDevice device = adapter.getRemoteDevice(mAddress);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            mState.transition(ConnectionStateMachine.STATE_CONNECTING, ConnectionStateMachine.STATE_DISCONNECTED);
+            return false;
+        }
+        startRxThread();
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        mBluetoothGatt = device.connectGatt(mService, false, mGattCallback);
+        Log.d(TAG, "Trying to create a new connection to " + mAddress);
+        return true;
+    }
+
+    void disconnect() {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return;
+        }
+        mHandler.removeCallbacks(mReconnect);
+        // stops the writer now rather than when the stack confirms
+        mState.moveTo(ConnectionStateMachine.STATE_DISCONNECTING);
+        mBluetoothGatt.disconnect();
+    }
+
+    void close() {
+        mState.moveTo(ConnectionStateMachine.STATE_DISCONNECTED);
+        stopWriter();
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        mGattQueue.clear("connection closed");
+        mHandler.removeCallbacks(mBulkCheck);
+        mHandler.removeCallbacks(mReconnect);
+        if (mRxThread != null) {
+            mRxThread.interrupt();
+            mRxThread = null;
+        }
+    }
+
+    /**
+     * Attaches a journal to this connection and queues any frames it still holds from a previous
+     * run of the app.
+     */
+    void setJournal(OutboundJournal journal) {
+        synchronized (mJournalLock) {
+            mJournal = journal;
+            List<EncodedFrame> frames = journal.replay();
+            List<Long> offsets = journal.pendingOffsets();
+            if (!frames.isEmpty()) {
+                Log.i(TAG, "Replaying " + frames.size() + " journaled frames for " + mAddress);
+            }
+            for (int i = 0; i < frames.size(); i++) {
+                FrameTransfer transfer = new FrameTransfer(frames.get(i));
+                transfer.setJournalOffset(offsets.get(i));
+                mFrameQueue.offer(transfer);
+            }
+        }
+    }
+
+    void closeJournal() {
+        synchronized (mJournalLock) {
+            try {
+                if (mJournal != null) {
+                    mJournal.close();
+                    mJournal = null;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts recording this connection's packets, replacing any running capture.
+     */
+    void setCapture(PacketCapture capture) {
+        PacketCapture previous = mCapture;
+        mCapture = capture;
+        closeCapture(previous);
+    }
+
+    void closeCapture() {
+        PacketCapture capture = mCapture;
+        mCapture = null;
+        closeCapture(capture);
+    }
+
+    private void flushCapture() {
+        PacketCapture capture = mCapture;
+        if (capture == null)
+            return;
+        try {
+            capture.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to flush capture: " + e.getMessage());
+        }
+    }
+
+    private void closeCapture(PacketCapture capture) {
+        if (capture == null)
+            return;
+        try {
+            capture.close();
+            Log.i(TAG, "Captured " + capture.getRecordedCount() + " packets for " + mAddress
+                    + ", dropped " + capture.getDroppedCount());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close capture: " + e.getMessage());
+        }
+    }
+
+    // Called once a write has been confirmed by the stack, so a frame is only dropped from the
+    // journal after its footer actually went out.
+    private void commitJournal() {
+        if (mPendingCheckpoint < 0)
+            return;
+        synchronized (mJournalLock) {
+            if (mJournal != null && mPendingCheckpoint >= 0) {
+                mJournal.checkpoint(mPendingCheckpoint);
+            }
+            mPendingCheckpoint = -1;
+        }
+    }
+
+    void readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return;
+        }
+        mGattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_READ,
+                characteristic.getUuid()) {
+            @Override
+            protected boolean execute() {
+                BluetoothGatt gatt = mBluetoothGatt;
+                return gatt != null && gatt.readCharacteristic(characteristic);
+            }
+        });
+    }
+
+    /**
+     * Queues a write of the characteristic's current value and write type.
+     *
+     * @return false if there is no GATT connection to write to.
+     */
+    boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        final byte[] value = characteristic.getValue();
+        final int writeType = characteristic.getWriteType();
+        mGattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_WRITE,
+                characteristic.getUuid()) {
+            @Override
+            protected boolean execute() {
+                BluetoothGatt gatt = mBluetoothGatt;
+                characteristic.setValue(value);
+                characteristic.setWriteType(writeType);
+                return gatt != null && gatt.writeCharacteristic(characteristic);
+            }
+        });
+        return true;
+    }
+
+    void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                       boolean enabled) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return;
+        }
+        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+
+        // This is the SIX-15 Eyewear Serial TX
+        if(Six15GattAttributes.UUID_SIX15_DATA_RX.equals(characteristic.getUuid())) {
+
+            Log.i(TAG, "Enabling receive data from eyewear");
+            final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                    Six15GattAttributes.UUID_CLIENT_CHARACTERISTIC_CONFIG);
+            mGattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                    Six15GattAttributes.UUID_CLIENT_CHARACTERISTIC_CONFIG) {
+                @Override
+                protected boolean execute() {
+                    BluetoothGatt gatt = mBluetoothGatt;
+                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                    return gatt != null && gatt.writeDescriptor(descriptor);
+                }
+            });
+
+        }
+    }
+
+    BluetoothGattService getBLEService(UUID uuid) {
+        BluetoothGattService temp = null;
+        temp = mBluetoothGatt.getService(uuid);
+        if(temp == null)
+            discoverServices();
+
+        return temp;
+    }
+
+    List<BluetoothGattService> getSupportedGattServices() {
+        if (mBluetoothGatt == null) return null;
+
+        return mBluetoothGatt.getServices();
+    }
+
+    // Hands the writer's packets to the TX characteristic through the GATT queue.
+    class GattLink implements FrameWriter.Link {
+        @Override
+        public void writePacket(final byte[] x, final FrameTransfer transfer) {
+            mGattQueue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OP_WRITE,
+                    Six15GattAttributes.UUID_SIX15_DATA_TX, WRITE_STALL_TIMEOUT_MS) {
+                @Override
+                protected boolean execute() {
+                    BluetoothGatt gatt = mBluetoothGatt;
+                    BluetoothGattCharacteristic sendDataChar = mSendDataChar;
+                    if (gatt == null || sendDataChar == null || !mState.isReady())
+                        return false;
+                    sendDataChar.setValue(x);
+                    sendDataChar.setWriteType(mTuner.getWriteType());
+                    final long writeStart = System.nanoTime();
+                    mTuner.onWriteStarted(writeStart);
+                    if (transfer.getTrace() != null) {
+                        transfer.getTrace().markWrite(writeStart);
+                    }
+                    boolean status = gatt.writeCharacteristic(sendDataChar);
+                    if (!status) {
+                        mTuner.onWriteRejected(System.nanoTime());
+                    } else {
+                        final PacketCapture capture = mCapture;
+                        if (capture != null) {
+                            capture.record(PacketCapture.DIRECTION_TX, writeStart, x);
+                        }
+                    }
+                    return status;
+                }
+
+                @Override
+                protected void onFailed(String reason) {
+                    Log.e(TAG, "Failed to send BLE Packet: " + reason);
+                    if (!resetStalledLink(reason)) {
+                        // keep the writer going; after a disconnect the frame is resumed instead
+                        mWriter.onWriteDone();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onLastPacket(FrameTransfer transfer) {
+            EyewearConnection.this.onLastPacket(transfer);
+        }
+
+        @Override
+        public void onFrameDropped(FrameTransfer transfer) {
+            Log.d(TAG, "Dropped stale " + transfer.getType() + " frame for " + mAddress);
+            mMetrics.onStaleFrameDropped();
+        }
+    }
+
+    // Escalation for a packet write that was refused on every attempt or timed out: the stack is
+    // wedged, so the writer stops at once and the GATT client is closed and opened again on the
+    // main thread.  The interrupted frame is resumed after the reconnect.
+    private boolean resetStalledLink(String reason) {
+        // nothing to do unless packets were being written; a disconnect also fails writes
+        if (!mState.transition(ConnectionStateMachine.STATE_READY, ConnectionStateMachine.STATE_DISCONNECTING))
+            return false;
+        mMetrics.onGattReset();
+        final int resets = ++mConsecutiveResets;
+        Log.w(TAG, "Writes to " + mAddress + " stalled (" + reason + "), resetting GATT, attempt " + resets);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                resetGatt(resets);
+            }
+        });
+        return true;
+    }
+
+    private void resetGatt(int resets) {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        mState.moveTo(ConnectionStateMachine.STATE_DISCONNECTED);
+        mSendDataChar = null;
+        mGattQueue.clear("GATT reset");
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+        }
+        mBluetoothGatt = null;
+        mService.broadcastUpdate(BluetoothLeService.ACTION_GATT_DISCONNECTED, mAddress);
+        if (resets > MAX_CONSECUTIVE_RESETS) {
+            Log.e(TAG, "Giving up on " + mAddress + " after " + MAX_CONSECUTIVE_RESETS + " GATT resets");
+            return;
+        }
+        mHandler.postDelayed(mReconnect, RESET_RECONNECT_DELAY_MS << (resets - 1));
+    }
+
+    // Drains mRxRing: acknowledges go to the transfer bookkeeping, every value is broadcast.
+    class RxDispatcher implements Runnable {
+        public void run() {
+            byte[] buffer = new byte[mRxRing.getSlotSize()];
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    int length = mRxRing.take(buffer, Long.MAX_VALUE);
+                    if (length < 0)
+                        continue;
+                    byte[] value = new byte[length];
+                    System.arraycopy(buffer, 0, value, 0, length);
+                    final int confirmed = SerialProtocol.parseAcknowledge(value);
+                    if (confirmed >= 0) {
+                        onFrameAcknowledged(confirmed);
+                        onTransferAcknowledged(confirmed);
+                    }
+                    final BulkTransfer bulk = mBulk;
+                    if (bulk != null) {
+                        final int block = bulk.parseAcknowledge(value);
+                        if (block >= 0) {
+                            onBlockAcknowledged(bulk, block);
+                        }
+                    }
+                    mService.broadcastReceivedData(mAddress, value);
+                }
+            } catch (InterruptedException ex) {
+                Log.d(TAG, "RX dispatcher stopped for " + mAddress);
+            }
+        }
+    }
+
+    private void startRxThread() {
+        if (mRxThread == null) {
+            mRxThread = new Thread(new RxDispatcher(), TAG + " RX " + mAddress);
+            mRxThread.start();
+        }
+    }
+
+    private static boolean supportsNoResponse(BluetoothGattCharacteristic characteristic){
+        return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    private static BluetoothGattCharacteristic findSendCharacteristic(BluetoothGatt gatt){
+        BluetoothGattService service = gatt.getService(Six15GattAttributes.UUID_SIX15_BLE_SERVICE);
+        if (service == null)
+            return null;
+        return service.getCharacteristic(Six15GattAttributes.UUID_SIX15_DATA_TX);
+    }
+
+    private void startWriter(){
+        FrameTransfer current = mWriter.getCurrentTransfer();
+        if (current != null && current.isResumable()) {
+            Log.i(TAG, "Resuming frame at packet " + current.getConfirmedPackets());
+        }
+        mWriter.start();
+    }
+
+    // The frame being written stays in the writer and the rest in mFrameQueue, so the next
+    // session picks up where this one stopped.
+    private void stopWriter(){
+        mWriter.stop();
+    }
+
+    void enqueueTransfer(FrameTransfer transfer){
+        Log.d(TAG, mAddress + " Queue Size: " + mFrameQueue.size());
+        if (mJournal == null || transfer.hasDeadline()) {
+            queueTransfer(mFrameQueue, null, transfer);
+            return;
+        }
+        // journal order has to match queue order for replay
+        synchronized (mJournalLock) {
+            queueTransfer(mFrameQueue, mJournal, transfer);
+        }
+    }
+
+    /**
+     * Queues a transfer for the writer, journaling it first if {@code journal} is not null.
+     * Frames with a deadline are not journaled: they are not worth replaying after a restart,
+     * and the writer may reorder them, which the journal checkpoint does not allow for.
+     * LinkBenchmark queues its frames through here too.
+     */
+    static void queueTransfer(FrameQueue queue, OutboundJournal journal, FrameTransfer transfer){
+        if (transfer.getTrace() != null) {
+            transfer.getTrace().mark(LatencyTracer.STAGE_ENQUEUE);
+        }
+        if (journal != null && !transfer.hasDeadline()) {
+            try {
+                transfer.setJournalOffset(journal.append(transfer.getFrame()));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal frame: " + e.getMessage());
+            }
+        }
+        queue.offer(transfer);
+    }
+
+    /**
+     * Starts a bulk transfer.  Its blocks are queued a window at a time as block acknowledges
+     * come back, and overdue blocks are sent again.
+     *
+     * @return false if another bulk transfer is still running.
+     */
+    boolean startBulkTransfer(BulkTransfer transfer){
+        if (mBulk != null)
+            return false;
+        mBulk = transfer;
+        pumpBulk();
+        mHandler.postDelayed(mBulkCheck, BULK_CHECK_INTERVAL_MS);
+        return true;
+    }
+
+    // Queues the blocks the bulk transfer wants sent now.  Nothing is queued while disconnected;
+    // the blocks already in mFrameQueue wait there and overdue ones are re-queued on reconnect.
+    private void pumpBulk(){
+        final BulkTransfer bulk = mBulk;
+        if (bulk == null || !isConnected())
+            return;
+        for (int block : bulk.nextBlocks(System.nanoTime())) {
+            mFrameQueue.offer(bulk.createBlockTransfer(block));
+        }
+    }
+
+    private void onBlockAcknowledged(BulkTransfer bulk, int block){
+        if (!bulk.onBlockAcknowledged(block))
+            return;
+        if (bulk.isComplete()) {
+            Log.i(TAG, "Bulk transfer of " + bulk.getBlockCount() + " blocks to " + mAddress
+                    + " complete, " + bulk.getResendCount() + " resent");
+            mBulk = null;
+            mHandler.removeCallbacks(mBulkCheck);
+            mService.broadcastUpdate(BluetoothLeService.ACTION_BULK_TRANSFER_COMPLETE, mAddress);
+        } else {
+            pumpBulk();
+        }
+    }
+
+    // Called on the writer thread as the last packet of a frame is taken.
+    private void onLastPacket(FrameTransfer transfer){
+        if (transfer.getJournalOffset() >= 0) {
+            mPendingCheckpoint = transfer.getJournalOffset();
+        }
+        if (transfer.getBulkTransfer() != null) {
+            // the block's resend timer starts now, not when it was queued
+            transfer.getBulkTransfer().onBlockSent(transfer.getBulkBlock(), System.nanoTime());
+        }
+        mFooterTransfer = transfer;
+    }
+
+    // Latency tracing: a frame's trace is stamped when its footer write completes, then kept
+    // until the eyewear acknowledges every data packet or the next frame's footer goes out.
+    private void onFooterWritten(long now){
+        FrameTransfer footer = mFooterTransfer;
+        if (footer == null)
+            return;
+        mFooterTransfer = null;
+        if (footer.getTrace() == null)
+            return;
+        footer.getTrace().mark(LatencyTracer.STAGE_FOOTER_COMPLETE, now);
+        synchronized (mGattCallback) {
+            if (mAckTransfer != null)
+                LatencyTracer.getInstance().complete(mAckTransfer.getTrace());
+            mAckTransfer = footer;
+        }
+    }
+
+    private void onFrameAcknowledged(int confirmedPackets){
+        synchronized (mGattCallback) {
+            FrameTransfer transfer = mAckTransfer;
+            if (transfer == null || confirmedPackets < transfer.getFrame().getDataPacketCount())
+                return;
+            transfer.getTrace().mark(LatencyTracer.STAGE_ACK);
+            LatencyTracer.getInstance().complete(transfer.getTrace());
+            mAckTransfer = null;
+        }
+    }
+
+    private void onTransferAcknowledged(int confirmedPackets){
+        mWriter.onAcknowledge(confirmedPackets);
+    }
+}
@@ -0,0 +1,215 @@
+package com.six15.eyeweardemo;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Local stand-in for the eyewear firmware's serial receiver.  Packets written to the TX
+ * characteristic are fed to {@link #receive(byte[])}, reassembled into frames and checked
+ * against the header CRC.  Acknowledges that the real glass would notify on the RX
+ * characteristic are handed to the {@link Listener}, so transfers can be exercised without
+ * hardware.
+ *
+ * <p>BULK frames are blocks of a {@link BulkTransfer}: each verified block is stored by its
+ * sequence number and acknowledged with a block acknowledge, and the reassembled blob is
+ * reported through {@link Listener#onFrameReceived} once every block is in.
+ */
+public class EyewearSimulator {
+
+    public interface Listener {
+        void onNotification(byte[] packet);
+
+        void onFrameReceived(SerialProtocol.FrameTypes type, byte[] data);
+    }
+
+    private final Listener mListener;
+    private final int mAckInterval;
+
+    private boolean mExpectHeader = true;
+    private SerialProtocol.FrameTypes mType;
+    private int mLength;
+    private int mCrc;
+    private int mTotalPackets;
+    private int mNextPacket;
+    private byte[] mBuffer;
+
+    private int mFramesReceived;
+    private int mFramesDropped;
+    private int mFramesResumed;
+
+    // blobs being reassembled from BULK blocks, by blob id
+    private final Map<Integer, Blob> mBlobs = new HashMap<>();
+
+    private static class Blob {
+        final byte[] data;
+        final BitSet received;
+        final int blockCount;
+
+        Blob(int length, int blockCount) {
+            data = new byte[length];
+            received = new BitSet(blockCount);
+            this.blockCount = blockCount;
+        }
+    }
+
+    /**
+     * @param listener    receives notifications and completed frames.
+     * @param ackInterval number of data packets between acknowledges, 0 to only acknowledge
+     *                    at the end of a frame.
+     */
+    public EyewearSimulator(Listener listener, int ackInterval) {
+        mListener = listener;
+        mAckInterval = ackInterval;
+    }
+
+    /**
+     * Simulates the link dropping.  Any partially received frame is kept so a RESUME header can
+     * pick it up again, but the next packet must start a new frame or resume.
+     */
+    public void linkLost() {
+        mExpectHeader = true;
+    }
+
+    public void receive(byte[] packet) {
+        if (mExpectHeader) {
+            receiveHeader(packet);
+        } else if (mNextPacket < mTotalPackets) {
+            receiveData(packet);
+        } else {
+            receiveFooter(packet);
+        }
+    }
+
+    private void receiveHeader(byte[] packet) {
+        if (packet[1] != SerialProtocol.START_OF_FRAME) {
+            // stray data packet from an interrupted frame
+            mFramesDropped++;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.wrap(packet);
+        SerialProtocol.FrameTypes type = SerialProtocol.fromTypeCode(packet[2]);
+        int length = header.getInt(3);
+        int crc = header.getInt(7);
+
+        if (type == SerialProtocol.FrameTypes.RESUME) {
+            int resumePacket = header.getInt(11);
+            SerialProtocol.FrameTypes resumeType = SerialProtocol.fromTypeCode(packet[15]);
+            if (mBuffer != null && resumeType == mType && length == mLength && crc == mCrc
+                    && resumePacket <= mNextPacket) {
+                mNextPacket = resumePacket;
+                mExpectHeader = false;
+                mFramesResumed++;
+            } else {
+                // nothing to resume, tell the phone to start over
+                mBuffer = null;
+                mFramesDropped++;
+                mListener.onNotification(SerialProtocol.buildAcknowledge(0));
+            }
+            return;
+        }
+
+        if (type == null || type == SerialProtocol.FrameTypes.ACKNOWLEDGE) {
+            mFramesDropped++;
+            return;
+        }
+
+        mType = type;
+        mLength = length;
+        mCrc = crc;
+        mTotalPackets = (length + SerialProtocol.PACKET_PAYLOAD_SIZE - 1) / SerialProtocol.PACKET_PAYLOAD_SIZE;
+        mNextPacket = 0;
+        mBuffer = new byte[length];
+        mExpectHeader = false;
+    }
+
+    private void receiveData(byte[] packet) {
+        int len = packet[0] & 0xFF;
+        int offset = mNextPacket * SerialProtocol.PACKET_PAYLOAD_SIZE;
+        if (len > SerialProtocol.PACKET_PAYLOAD_SIZE || offset + len > mLength) {
+            mBuffer = null;
+            mExpectHeader = true;
+            mFramesDropped++;
+            return;
+        }
+        System.arraycopy(packet, 1, mBuffer, offset, len);
+        mNextPacket++;
+
+        if (mAckInterval > 0 && mNextPacket % mAckInterval == 0) {
+            mListener.onNotification(SerialProtocol.buildAcknowledge(mNextPacket));
+        }
+    }
+
+    private void receiveFooter(byte[] packet) {
+        mExpectHeader = true;
+        if (packet[1] != SerialProtocol.END_OF_FRAME) {
+            mBuffer = null;
+            mFramesDropped++;
+            return;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(mBuffer, 0, mBuffer.length);
+        byte[] data = mBuffer;
+        mBuffer = null;
+        if ((int) checksum.getValue() != mCrc) {
+            mFramesDropped++;
+            return;
+        }
+        mFramesReceived++;
+        mListener.onNotification(SerialProtocol.buildAcknowledge(mTotalPackets));
+        if (mType == SerialProtocol.FrameTypes.BULK) {
+            receiveBlock(data);
+        } else {
+            mListener.onFrameReceived(mType, data);
+        }
+    }
+
+    private void receiveBlock(byte[] frame) {
+        if (frame.length <= BulkTransfer.BLOCK_HEADER_SIZE)
+            return;
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        int blobId = header.getInt(0);
+        int seq = header.getInt(4);
+        int blockSize = header.getInt(8);
+        int blobLength = header.getInt(12);
+        int blockCrc = header.getInt(16);
+        int length = frame.length - BulkTransfer.BLOCK_HEADER_SIZE;
+
+        CRC32 checksum = new CRC32();
+        checksum.update(frame, BulkTransfer.BLOCK_HEADER_SIZE, length);
+        if ((int) checksum.getValue() != blockCrc || blockSize < 1 || seq < 0
+                || (long) seq * blockSize + length > blobLength) {
+            mFramesDropped++;
+            return;
+        }
+
+        Blob blob = mBlobs.get(blobId);
+        if (blob == null) {
+            blob = new Blob(blobLength, (blobLength + blockSize - 1) / blockSize);
+            mBlobs.put(blobId, blob);
+        }
+        System.arraycopy(frame, BulkTransfer.BLOCK_HEADER_SIZE, blob.data, seq * blockSize, length);
+        blob.received.set(seq);
+        // duplicates are acknowledged again in case the first acknowledge was lost
+        mListener.onNotification(SerialProtocol.buildBlockAcknowledge(blobId, seq));
+
+        if (blob.received.cardinality() == blob.blockCount) {
+            mBlobs.remove(blobId);
+            mListener.onFrameReceived(SerialProtocol.FrameTypes.BULK, blob.data);
+        }
+    }
+
+    public int getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    public int getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    public int getFramesResumed() {
+        return mFramesResumed;
+    }
+}
@@ -0,0 +1,98 @@
+package com.six15.eyeweardemo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free multi-producer/single-consumer queue of whole frames for one connection's writer.
+ * Any thread may {@link #offer} a frame; it is published with a single atomic swap of the tail,
+ * so frames from different senders never interleave and a frame costs one node however many
+ * packets it has.  Only the writer thread may {@link #poll} or {@link #take}.
+ *
+ * <p>This is the linked MPSC queue described by Dmitry Vyukov: the consumer owns the head, a
+ * stub node, and follows {@code next} links written by producers after their swap.
+ */
+public class FrameQueue {
+
+    private static final class Node {
+        FrameTransfer value;
+        volatile Node next;
+
+        Node(FrameTransfer value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node> mTail;
+    // consumer only
+    private Node mHead;
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile Thread mWaiter = null;
+
+    public FrameQueue() {
+        Node stub = new Node(null);
+        mHead = stub;
+        mTail = new AtomicReference<>(stub);
+    }
+
+    public void offer(FrameTransfer transfer) {
+        Node node = new Node(transfer);
+        mSize.incrementAndGet();
+        Node previous = mTail.getAndSet(node);
+        previous.next = node;
+
+        Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    /**
+     * @return the oldest frame, or null if there is none.  Consumer thread only.
+     */
+    public FrameTransfer poll() {
+        Node next = mHead.next;
+        if (next == null)
+            return null;
+        FrameTransfer transfer = next.value;
+        next.value = null;
+        mHead = next;
+        mSize.decrementAndGet();
+        return transfer;
+    }
+
+    /**
+     * Waits for the next frame.  Consumer thread only.
+     *
+     * @throws InterruptedException if the consumer thread is interrupted while waiting.
+     */
+    public FrameTransfer take() throws InterruptedException {
+        FrameTransfer transfer = poll();
+        if (transfer != null)
+            return transfer;
+        mWaiter = Thread.currentThread();
+        try {
+            while ((transfer = poll()) == null) {
+                // a producer between its swap and linking next is covered by the timed park
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            mWaiter = null;
+        }
+        return transfer;
+    }
+
+    /**
+     * @return the number of queued frames; approximate while producers are adding.
+     */
+    public int size() {
+        return Math.max(0, mSize.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
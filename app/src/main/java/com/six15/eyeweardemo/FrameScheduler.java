@@ -0,0 +1,85 @@
+package com.six15.eyeweardemo;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Orders the frames waiting for one connection's writer earliest deadline first.  Frames
+ * without a deadline sort after every frame that has one and keep their queue order among
+ * themselves, so commands, journaled frames and bulk blocks go out exactly as before.
+ *
+ * <p>A frame whose deadline can no longer be met at the current packet rate is dropped when it
+ * comes up, before any of its packets are written; sending it late would only delay the frames
+ * behind it.
+ *
+ * <p>Not thread safe; only the writer thread uses it, fed from the lock-free {@link FrameQueue}.
+ */
+public class FrameScheduler {
+
+    private static final class Entry {
+        final FrameTransfer transfer;
+        final long order;
+
+        Entry(FrameTransfer transfer, long order) {
+            this.transfer = transfer;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Entry> EDF = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            long deadlineA = a.transfer.getDeadline();
+            long deadlineB = b.transfer.getDeadline();
+            if (deadlineA != deadlineB)
+                return deadlineA < deadlineB ? -1 : 1;
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    private final PriorityQueue<Entry> mPending = new PriorityQueue<>(16, EDF);
+    private long mNextOrder = 0;
+
+    public void add(FrameTransfer transfer) {
+        mPending.add(new Entry(transfer, mNextOrder++));
+    }
+
+    public int size() {
+        return mPending.size();
+    }
+
+    public boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    /**
+     * Takes the frame with the earliest deadline that can still make it.
+     *
+     * @param nowNanos {@link System#nanoTime()} now.
+     * @param packetsPerSecond the rate packets are currently written at.
+     * @param stale receives the frames dropped on the way, earliest deadline first.
+     * @return the next frame to send, or null if none is left.
+     */
+    public FrameTransfer poll(long nowNanos, double packetsPerSecond, List<FrameTransfer> stale) {
+        Entry entry;
+        while ((entry = mPending.poll()) != null) {
+            FrameTransfer transfer = entry.transfer;
+            if (!isLate(transfer, transfer.getFrame().getPacketCount(), nowNanos, packetsPerSecond))
+                return transfer;
+            stale.add(transfer);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if writing {@code packets} packets of {@code transfer} from {@code nowNanos}
+     *         on would finish after its deadline.
+     */
+    public static boolean isLate(FrameTransfer transfer, int packets, long nowNanos, double packetsPerSecond) {
+        if (!transfer.hasDeadline())
+            return false;
+        long sendNanos = packetsPerSecond > 0 ? (long) (packets * 1e9 / packetsPerSecond) : 0;
+        return nowNanos + sendNanos - transfer.getDeadline() > 0;
+    }
+}
@@ -0,0 +1,176 @@
+package com.six15.eyeweardemo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks one connection's progress through an {@link EncodedFrame}: how many of its packets
+ * have been handed to the BLE stack and how many data packets the eyewear has confirmed.  The
+ * encoded frame itself is shared, so sending the same frame to several headsets only costs one
+ * FrameTransfer each.  Keeping the frame around lets an interrupted IMAGE frame be resumed from
+ * the last confirmed packet after a reconnect instead of being sent again from the start.
+ */
+public class FrameTransfer {
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final EncodedFrame mFrame;
+
+    // written by the writer thread, except mConfirmedPackets which the RX thread updates
+    private volatile int mFirstDataPacket;
+    private volatile int mPacketsQueued;
+    private volatile int mPacketsSent;
+    private volatile int mConfirmedPackets;
+    private long mJournalOffset = -1;
+    private volatile long mDeadline = NO_DEADLINE;
+    private LatencyTracer.FrameTrace mTrace;
+    // the bulk transfer this frame carries a block of, if any
+    private BulkTransfer mBulk;
+    private int mBulkBlock = -1;
+
+    public FrameTransfer(EncodedFrame frame) {
+        mFrame = frame;
+    }
+
+    public FrameTransfer(SerialProtocol.FrameTypes type, byte[] data) {
+        this(EncodedFrame.encode(type, data));
+    }
+
+    public SerialProtocol.FrameTypes getType() {
+        return mFrame.getType();
+    }
+
+    public EncodedFrame getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * @return the end of this frame's record in the outbound journal, or -1 if not journaled.
+     */
+    public long getJournalOffset() {
+        return mJournalOffset;
+    }
+
+    public void setJournalOffset(long offset) {
+        mJournalOffset = offset;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} by which the frame has to be fully written, or
+     *         {@link #NO_DEADLINE}.
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Sets when the frame stops being worth sending, see {@link FrameScheduler}.  Must be set
+     * before the frame is queued.
+     */
+    public void setDeadline(long deadlineNanos) {
+        mDeadline = deadlineNanos;
+    }
+
+    public boolean hasDeadline() {
+        return mDeadline != NO_DEADLINE;
+    }
+
+    /**
+     * @return the latency trace of this frame, or null if it is not traced.
+     */
+    public LatencyTracer.FrameTrace getTrace() {
+        return mTrace;
+    }
+
+    public void setTrace(LatencyTracer.FrameTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Marks the frame as block {@code seq} of {@code bulk}, see
+     * {@link BulkTransfer#createBlockTransfer(int)}.
+     */
+    public void setBulkBlock(BulkTransfer bulk, int seq) {
+        mBulk = bulk;
+        mBulkBlock = seq;
+    }
+
+    /**
+     * @return the bulk transfer this frame is a block of, or null.
+     */
+    public BulkTransfer getBulkTransfer() {
+        return mBulk;
+    }
+
+    public int getBulkBlock() {
+        return mBulkBlock;
+    }
+
+    public int getConfirmedPackets() {
+        return mConfirmedPackets;
+    }
+
+    /**
+     * Returns the complete packet sequence (header, data, footer) for this frame.  The packets
+     * are the shared ones of the encoded frame, not copies.
+     */
+    public List<byte[]> buildPackets() {
+        mConfirmedPackets = 0;
+        mFirstDataPacket = 0;
+        mPacketsQueued = mFrame.getPacketCount();
+        mPacketsSent = 0;
+        return mFrame.packets(0);
+    }
+
+    /**
+     * Builds the packet sequence to send after a reconnect: a RESUME header and the data packets
+     * from the last confirmed one when the frame can be resumed, the full frame otherwise.
+     */
+    public List<byte[]> buildResumePackets() {
+        if (!isResumable()) {
+            return buildPackets();
+        }
+        // data packet i of the frame is packet i + 1, after the header
+        List<byte[]> remaining = mFrame.packets(mConfirmedPackets + 1);
+        List<byte[]> packets = new ArrayList<>(remaining.size() + 1);
+        packets.add(mFrame.buildResumeHeader(mConfirmedPackets));
+        packets.addAll(remaining);
+
+        mFirstDataPacket = mConfirmedPackets;
+        mPacketsQueued = packets.size();
+        mPacketsSent = 0;
+        return packets;
+    }
+
+    public boolean isResumable() {
+        return mFrame.getType() == SerialProtocol.FrameTypes.IMAGE
+                && mConfirmedPackets > 0 && mConfirmedPackets < mFrame.getDataPacketCount();
+    }
+
+    /**
+     * Records that one more packet of this frame was taken by the writer.
+     *
+     * @return true once every queued packet of the frame has been sent.
+     */
+    public boolean packetSent() {
+        mPacketsSent++;
+        return mPacketsSent >= mPacketsQueued;
+    }
+
+    public boolean isStarted() {
+        return mPacketsSent > 0;
+    }
+
+    /**
+     * Applies an acknowledge from the eyewear.  Counts larger than what has actually been written
+     * are ignored since they cannot belong to this frame.
+     */
+    public void setConfirmedPackets(int confirmed) {
+        int written = Math.min(mFrame.getDataPacketCount(),
+                mFirstDataPacket + Math.max(0, mPacketsSent - 1));
+        if (confirmed < 0 || confirmed > written)
+            return;
+        if (confirmed > mConfirmedPackets)
+            mConfirmedPackets = confirmed;
+    }
+}
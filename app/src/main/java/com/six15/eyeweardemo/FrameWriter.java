@@ -0,0 +1,312 @@
+package com.six15.eyeweardemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes a connection's queued frames to its link, one packet per completed write.  The writer
+ * thread takes a whole frame from the {@link FrameQueue} and iterates its packets; the next packet
+ * is only handed to the link once the previous write has completed or failed, and packets are
+ * paced by a {@link TokenBucket} at the {@link LinkAutotuner}'s rate unless a fixed rate is set.
+ * Queued frames are moved to a {@link FrameScheduler} and sent earliest deadline first; frames
+ * that would miss their deadline at the current rate are dropped before their first packet.
+ *
+ * <p>The frame being written is kept across {@link #stop()}, so the next {@link #start()}, e.g.
+ * after a reconnect, resumes it before taking more frames from the queue.  {@link #stop()}
+ * waits for the writer thread to exit, so state marked writer thread only is never touched by
+ * two threads at once.
+ *
+ * <p>Nothing here touches the Bluetooth stack, so the same writer runs against an emulated link
+ * in the benchmarks.
+ */
+public class FrameWriter {
+
+    /**
+     * Where packets go.  All methods are called on the writer thread.
+     */
+    public interface Link {
+        /**
+         * Starts writing one packet.  The link calls {@link FrameWriter#onWriteDone()} once the
+         * write has completed or failed.
+         */
+        void writePacket(byte[] packet, FrameTransfer transfer);
+
+        /**
+         * The last packet of {@code transfer} is about to be written.
+         */
+        void onLastPacket(FrameTransfer transfer);
+
+        /**
+         * {@code transfer} was dropped without writing any of its packets, because it could no
+         * longer be written before its deadline.
+         */
+        void onFrameDropped(FrameTransfer transfer);
+    }
+
+    static final int DEFAULT_PACING_BURST = 4;
+    // a frame written without response and not fully acknowledged by then was lost
+    static final long DELIVERY_TIMEOUT_NANOS = 2000000000L;
+
+    private final String mName;
+    private final FrameQueue mQueue;
+    private final LinkAutotuner mTuner;
+    private final Link mLink;
+    // writer thread only
+    private final FrameScheduler mScheduler = new FrameScheduler();
+    private final List<FrameTransfer> mStale = new ArrayList<>();
+    private final TokenBucket mPacer = new TokenBucket(LinkAutotuner.INITIAL_RATE, DEFAULT_PACING_BURST);
+    private volatile double mFixedRate = 0;
+
+    // one permit: the previous packet write has finished
+    private final Semaphore mWriteSlot = new Semaphore(1);
+    // frame part way through, kept across stop() so it can be resumed
+    private volatile FrameTransfer mCurrentTransfer = null;
+    // the last frame sent as a RESUME sequence, until the eyewear accepts or rejects it
+    private volatile FrameTransfer mResumedTransfer = null;
+    // a resumed frame the eyewear rejected, to be sent again from its header
+    private volatile FrameTransfer mRestartTransfer = null;
+    // last frame written without response, until the eyewear acknowledges all of it
+    private volatile FrameTransfer mAwaitingAck = null;
+    private volatile long mAwaitingSince;
+    private long mDeliveryTimeoutNanos = DELIVERY_TIMEOUT_NANOS;
+    private Thread mThread = null;
+    // the last stopped writer thread, which may still be on its way out if it stopped itself
+    private Thread mExiting = null;
+
+    public FrameWriter(String name, FrameQueue queue, LinkAutotuner tuner, Link link) {
+        mName = name;
+        mQueue = queue;
+        mTuner = tuner;
+        mLink = link;
+    }
+
+    /**
+     * Sets the packet pacing.
+     *
+     * @param packetsPerSecond sustained write rate, or 0 to follow the autotuner.
+     * @param burst packets that may go out back to back after the link was idle.
+     */
+    public void setPacing(double packetsPerSecond, int burst) {
+        mPacer.setBurst(burst);
+        mFixedRate = Math.max(0, packetsPerSecond);
+    }
+
+    /**
+     * @return the frame being written, or null between frames.
+     */
+    public FrameTransfer getCurrentTransfer() {
+        return mCurrentTransfer;
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Starts a writer thread, stopping any running one first and waiting for it to exit.
+     */
+    public void start() {
+        stop();
+        Thread exiting;
+        synchronized (this) {
+            exiting = mExiting;
+        }
+        if (exiting != null)
+            join(exiting);
+        synchronized (this) {
+            mExiting = null;
+            // a write of the last session may never have completed
+            mWriteSlot.drainPermits();
+            mWriteSlot.release();
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, mName);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stops the writer thread and waits for it to exit.  Called on the writer thread itself,
+     * e.g. by a link giving up on a failed write, it only interrupts the thread, which exits at
+     * its next wait, and the next {@link #start()} waits for it instead.
+     *
+     * <p>Not to be called while holding a lock the link takes in
+     * {@link Link#writePacket(byte[], int, FrameTransfer)}, unless the write slot is taken.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            if (thread == null)
+                return;
+            mThread = null;
+            mExiting = thread;
+        }
+        thread.interrupt();
+        if (thread != Thread.currentThread())
+            join(thread);
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Applies an acknowledge from the eyewear.  An acknowledge of 0 packets right after a
+     * RESUME header means the eyewear has nothing to resume, so that frame is sent again from
+     * its header, at once if it is still being written, as the next frame otherwise.
+     */
+    public void onAcknowledge(int confirmedPackets) {
+        FrameTransfer awaiting = mAwaitingAck;
+        if (awaiting != null && confirmedPackets >= awaiting.getFrame().getDataPacketCount()) {
+            mAwaitingAck = null;
+        }
+        FrameTransfer resumed = mResumedTransfer;
+        if (resumed != null) {
+            mResumedTransfer = null;
+            if (confirmedPackets == 0) {
+                mRestartTransfer = resumed;
+                return;
+            }
+        }
+        FrameTransfer current = mCurrentTransfer;
+        if (current != null && current.isStarted()) {
+            current.setConfirmedPackets(confirmedPackets);
+        }
+    }
+
+    /**
+     * Called by the link when a packet write has completed or failed.
+     */
+    public void onWriteDone() {
+        mWriteSlot.release();
+    }
+
+    private void writeLoop() {
+        try {
+            // a frame interrupted by the last stop goes first
+            FrameTransfer transfer = mCurrentTransfer;
+            boolean resume = transfer != null;
+            if (transfer != null && mRestartTransfer == transfer) {
+                mRestartTransfer = null;
+                resume = false;
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                if (transfer == null) {
+                    transfer = nextTransfer();
+                    mCurrentTransfer = transfer;
+                }
+                List<byte[]> packets;
+                if (resume && transfer.isResumable()) {
+                    packets = transfer.buildResumePackets();
+                    mResumedTransfer = transfer;
+                } else {
+                    packets = transfer.buildPackets();
+                }
+                resume = false;
+                // a frame restarted after a reconnect may have run out of time meanwhile
+                if (FrameScheduler.isLate(transfer, packets.size(), System.nanoTime(), currentRate())) {
+                    mCurrentTransfer = null;
+                    mLink.onFrameDropped(transfer);
+                    transfer = null;
+                    continue;
+                }
+
+                boolean restart = false;
+                for (int i = 0; i < packets.size() && !restart; i++) {
+                    mWriteSlot.acquire();
+                    if (mRestartTransfer == transfer) {
+                        // the resume was rejected; the rest of this sequence would be dropped
+                        mRestartTransfer = null;
+                        mWriteSlot.release();
+                        restart = true;
+                        continue;
+                    }
+                    pace();
+                    if (transfer.packetSent()) {
+                        mCurrentTransfer = null;
+                        checkDelivery(transfer);
+                        mLink.onLastPacket(transfer);
+                    }
+                    mLink.writePacket(packets.get(i), transfer);
+                }
+                if (!restart)
+                    transfer = null;
+            }
+        } catch (InterruptedException ex) {
+            // stopped
+        }
+    }
+
+    // Moves whatever producers queued into the scheduler and takes the most urgent frame that
+    // can still make its deadline, waiting for the queue when nothing is left.
+    private FrameTransfer nextTransfer() throws InterruptedException {
+        FrameTransfer restart = mRestartTransfer;
+        if (restart != null) {
+            // rejected after its last packet was taken; it goes before anything else
+            mRestartTransfer = null;
+            return restart;
+        }
+        while (true) {
+            FrameTransfer queued;
+            while ((queued = mQueue.poll()) != null) {
+                mScheduler.add(queued);
+            }
+            if (!mScheduler.isEmpty()) {
+                FrameTransfer transfer = mScheduler.poll(System.nanoTime(), currentRate(), mStale);
+                for (int i = 0; i < mStale.size(); i++) {
+                    mLink.onFrameDropped(mStale.get(i));
+                }
+                mStale.clear();
+                if (transfer != null)
+                    return transfer;
+            }
+            mScheduler.add(mQueue.take());
+        }
+    }
+
+    void setDeliveryTimeout(long timeoutNanos) {
+        mDeliveryTimeoutNanos = timeoutNanos;
+    }
+
+    // Called as the last packet of a frame is taken.  Writes without response complete once the
+    // stack has the packet, so the only sign of loss is a frame the eyewear never confirms; a
+    // previous frame still unconfirmed after the delivery timeout is reported to the tuner.
+    private void checkDelivery(FrameTransfer transfer) {
+        final long now = System.nanoTime();
+        FrameTransfer awaiting = mAwaitingAck;
+        if (awaiting != null && now - mAwaitingSince > mDeliveryTimeoutNanos) {
+            mTuner.onDeliveryFailed(now);
+            awaiting = null;
+        }
+        // the oldest unconfirmed frame is the one to watch
+        if (awaiting == null && mTuner.getWriteType() == LinkAutotuner.WRITE_TYPE_NO_RESPONSE) {
+            mAwaitingSince = now;
+            awaiting = transfer;
+        }
+        mAwaitingAck = awaiting;
+    }
+
+    private double currentRate() {
+        final double fixedRate = mFixedRate;
+        return fixedRate > 0 ? fixedRate : mTuner.getPacketsPerSecond();
+    }
+
+    private void pace() throws InterruptedException {
+        mPacer.setRate(currentRate());
+        mPacer.acquire();
+    }
+}
@@ -0,0 +1,282 @@
+package com.six15.eyeweardemo;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the GATT operations of one connection strictly one at a time.  Android only allows a
+ * single read, write, descriptor write, MTU request or discovery in flight per BluetoothGatt;
+ * anything started while another is outstanding returns false and is lost.  Operations are
+ * queued here and the next one is started when the GATT callback reports the current one done
+ * through {@link #complete(int, UUID)}.  An operation the stack refuses is retried a few times
+ * with a doubling delay, and one whose callback never comes is failed after its timeout, so the
+ * queue never stalls.  A timed out operation is never started again: a write whose callback is
+ * late may still have reached the device, and repeating it would deliver it twice.  Every
+ * operation either completes or has {@link Operation#onFailed(String)} called, and every
+ * refusal, timeout, retry and failure is counted in the queue's {@link TransportMetrics}.
+ *
+ * <p>A callback only completes the operation in flight if its type and attribute match and
+ * the operation was actually started, not waiting to retry after a refusal.  The stack
+ * refuses new operations until it has called back for the previous one, so a late callback
+ * for an operation that already timed out arrives while its successor is still being refused,
+ * and is ignored.
+ */
+public class GattOperationQueue {
+    private final static String TAG = "GattOperationQueue";
+
+    public static final int OP_READ = 0;
+    public static final int OP_WRITE = 1;
+    public static final int OP_WRITE_DESCRIPTOR = 2;
+    public static final int OP_REQUEST_MTU = 3;
+    public static final int OP_DISCOVER_SERVICES = 4;
+    // requestConnectionPriority has no callback; it is queued only to keep ordering
+    public static final int OP_CONNECTION_PRIORITY = 5;
+
+    static final long DEFAULT_TIMEOUT_MS = 2000;
+    static final long DISCOVERY_TIMEOUT_MS = 10000;
+    static final int MAX_ATTEMPTS = 3;
+    // first retry delay, doubled for each further attempt up to MAX_RETRY_DELAY_MS
+    static final long RETRY_DELAY_MS = 20;
+    static final long MAX_RETRY_DELAY_MS = 500;
+
+    // timeouts and retries of every connection share one daemon thread
+    private static ScheduledExecutorService sTimer;
+
+    private static synchronized ScheduledExecutorService sharedTimer() {
+        if (sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    public static abstract class Operation {
+        private final int mType;
+        private final UUID mTarget;
+        private final long mTimeoutMs;
+        private int mAttempts = 0;
+
+        protected Operation(int type) {
+            this(type, null);
+        }
+
+        protected Operation(int type, long timeoutMs) {
+            this(type, null, timeoutMs);
+        }
+
+        protected Operation(int type, UUID target) {
+            this(type, target, type == OP_DISCOVER_SERVICES ? DISCOVERY_TIMEOUT_MS : DEFAULT_TIMEOUT_MS);
+        }
+
+        /**
+         * @param target the characteristic or descriptor the operation is on, matched against
+         *               the callback's; null for operations without one.
+         */
+        protected Operation(int type, UUID target, long timeoutMs) {
+            mType = type;
+            mTarget = target;
+            mTimeoutMs = timeoutMs;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public UUID getTarget() {
+            return mTarget;
+        }
+
+        /**
+         * Starts the operation on the BluetoothGatt.
+         *
+         * @return false if the stack refused it.
+         */
+        protected abstract boolean execute();
+
+        /**
+         * Called when the operation was refused on every attempt, timed out, or was cancelled.
+         */
+        protected void onFailed(String reason) {
+            Log.w(TAG, "GATT operation " + mType + " failed: " + reason);
+        }
+    }
+
+    private final ScheduledExecutorService mTimer;
+    private final TransportMetrics mMetrics;
+    private final Deque<Operation> mPending = new ArrayDeque<>();
+    private Operation mCurrent = null;
+    // whether the stack accepted mCurrent's latest attempt, i.e. a callback for it may come
+    private boolean bCurrentStarted = false;
+    private ScheduledFuture<?> mTimeout = null;
+
+    public GattOperationQueue(TransportMetrics metrics) {
+        this(sharedTimer(), metrics);
+    }
+
+    GattOperationQueue(ScheduledExecutorService timer) {
+        this(timer, new TransportMetrics());
+    }
+
+    GattOperationQueue(ScheduledExecutorService timer, TransportMetrics metrics) {
+        mTimer = timer;
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return the delay before attempt {@code attempt + 1} of an operation.
+     */
+    static long retryDelayMs(int attempt) {
+        return Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(attempt - 1, 16));
+    }
+
+    /**
+     * Queues an operation and starts it right away if the link is idle.
+     */
+    public synchronized void enqueue(Operation operation) {
+        mPending.add(operation);
+        dispatchNext();
+    }
+
+    /**
+     * Reports that a GATT callback without an attribute, e.g. for service discovery, arrived.
+     */
+    public synchronized boolean complete(int type) {
+        return complete(type, null);
+    }
+
+    /**
+     * Reports that the GATT callback of the given type for attribute {@code target} arrived,
+     * and starts the next operation.
+     *
+     * @return false if the callback does not belong to the operation in flight, e.g. because
+     *         it is a late one for an operation that already timed out; the caller should
+     *         ignore it.
+     */
+    public synchronized boolean complete(int type, UUID target) {
+        if (mCurrent == null || !bCurrentStarted || mCurrent.mType != type
+                || (mCurrent.mTarget != null && !mCurrent.mTarget.equals(target)))
+            return false;
+        finishCurrent();
+        dispatchNext();
+        return true;
+    }
+
+    /**
+     * Fails the operation in flight and everything queued, e.g. after the link dropped.
+     */
+    public synchronized void clear(String reason) {
+        Operation current = mCurrent;
+        if (current != null) {
+            finishCurrent();
+            current.onFailed(reason);
+        }
+        while (!mPending.isEmpty()) {
+            mPending.poll().onFailed(reason);
+        }
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized boolean isBusy() {
+        return mCurrent != null;
+    }
+
+    private void dispatchNext() {
+        while (mCurrent == null && !mPending.isEmpty()) {
+            start(mPending.poll());
+        }
+    }
+
+    private void start(final Operation operation) {
+        mCurrent = operation;
+        operation.mAttempts++;
+        boolean started;
+        try {
+            started = operation.execute();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "GATT operation " + operation.mType + " threw " + e);
+            started = false;
+        }
+        bCurrentStarted = started;
+
+        if (!started) {
+            mMetrics.onRefused(operation.mType);
+            // the stack is still busy with something outside this queue; try again shortly
+            if (!scheduleRetry(operation)) {
+                fail(operation, "refused " + operation.mAttempts + " times");
+            }
+            return;
+        }
+
+        if (operation.mType == OP_CONNECTION_PRIORITY) {
+            finishCurrent();
+            return;
+        }
+        mTimeout = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut(operation);
+            }
+        }, operation.mTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean scheduleRetry(final Operation operation) {
+        if (operation.mAttempts >= MAX_ATTEMPTS)
+            return false;
+        mMetrics.onRetry(operation.mType);
+        mTimeout = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retry(operation);
+            }
+        }, retryDelayMs(operation.mAttempts), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private synchronized void retry(Operation operation) {
+        if (mCurrent != operation)
+            return;
+        start(operation);
+        dispatchNext();
+    }
+
+    private synchronized void timedOut(Operation operation) {
+        if (mCurrent != operation)
+            return;
+        mMetrics.onTimedOut(operation.mType);
+        mTimeout = null;
+        fail(operation, "no callback after " + operation.mTimeoutMs + " ms");
+        dispatchNext();
+    }
+
+    private void fail(Operation operation, String reason) {
+        finishCurrent();
+        mMetrics.onFailed(operation.mType);
+        operation.onFailed(reason);
+    }
+
+    private void finishCurrent() {
+        if (mTimeout != null) {
+            mTimeout.cancel(false);
+            mTimeout = null;
+        }
+        mCurrent = null;
+        bCurrentStarted = false;
+    }
+}
@@ -0,0 +1,169 @@
+package com.six15.eyeweardemo;
+
+import java.util.Arrays;
+
+/**
+ * Lightweight per-frame latency tracing, from the UI action that produced a frame to its
+ * footer being written and, if the eyewear sends one, its acknowledge.  Each stage is stamped
+ * with {@link System#nanoTime()}; completed traces go into a fixed-size ring so tracing never
+ * allocates beyond one small object per frame, and percentile summaries are computed on demand.
+ */
+public class LatencyTracer {
+
+    public static final int STAGE_CLICK = 0;
+    public static final int STAGE_SEND = 1;
+    public static final int STAGE_ENQUEUE = 2;
+    public static final int STAGE_FIRST_WRITE = 3;
+    public static final int STAGE_LAST_WRITE = 4;
+    public static final int STAGE_FOOTER_COMPLETE = 5;
+    public static final int STAGE_ACK = 6;
+    public static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "click", "send", "enqueue", "first write", "last write", "footer", "ack"
+    };
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static LatencyTracer sInstance;
+
+    public static synchronized LatencyTracer getInstance() {
+        if (sInstance == null) {
+            sInstance = new LatencyTracer(DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Stage timestamps of one frame.  Stamps are written by one thread at a time as the frame
+     * moves through the pipeline; a stamp of 0 means the stage was not reached.
+     */
+    public static class FrameTrace {
+        private final long[] mStamps = new long[STAGE_COUNT];
+        private int mWrites;
+
+        public void mark(int stage) {
+            mark(stage, System.nanoTime());
+        }
+
+        public void mark(int stage, long nanos) {
+            mStamps[stage] = nanos;
+        }
+
+        /**
+         * Records one writeCharacteristic call for this frame.
+         */
+        public void markWrite(long nanos) {
+            if (mWrites == 0)
+                mStamps[STAGE_FIRST_WRITE] = nanos;
+            mStamps[STAGE_LAST_WRITE] = nanos;
+            mWrites++;
+        }
+
+        public long getStamp(int stage) {
+            return mStamps[stage];
+        }
+
+        public int getWriteCount() {
+            return mWrites;
+        }
+    }
+
+    private final long[][] mCompleted;
+    private int mNext = 0;
+    private int mCount = 0;
+
+    // click time of a UI action on the current thread, picked up by the send it triggers
+    private final ThreadLocal<long[]> mPendingClick = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    public LatencyTracer(int capacity) {
+        mCompleted = new long[capacity][STAGE_COUNT];
+    }
+
+    /**
+     * Stamps a UI action on the calling thread; the next trace started on this thread before
+     * {@link #clearClick()} carries it as its click stage.
+     */
+    public void markClick() {
+        mPendingClick.get()[0] = System.nanoTime();
+    }
+
+    public void clearClick() {
+        mPendingClick.get()[0] = 0;
+    }
+
+    /**
+     * Starts a trace for a frame whose send call was made at {@code sendNanos}.
+     */
+    public FrameTrace startTrace(long sendNanos) {
+        FrameTrace trace = new FrameTrace();
+        trace.mark(STAGE_CLICK, mPendingClick.get()[0]);
+        trace.mark(STAGE_SEND, sendNanos);
+        return trace;
+    }
+
+    /**
+     * Stores a finished trace, overwriting the oldest once the ring is full.
+     */
+    public synchronized void complete(FrameTrace trace) {
+        System.arraycopy(trace.mStamps, 0, mCompleted[mNext], 0, STAGE_COUNT);
+        mNext = (mNext + 1) % mCompleted.length;
+        if (mCount < mCompleted.length)
+            mCount++;
+    }
+
+    public synchronized int getTraceCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the given percentile of the time between two stages over the stored traces that
+     * reached both, or -1 if there are none.
+     *
+     * @param percentile 0 to 100.
+     */
+    public synchronized long percentileNanos(int fromStage, int toStage, double percentile) {
+        long[] deltas = new long[mCount];
+        int n = 0;
+        for (int i = 0; i < mCount; i++) {
+            long from = mCompleted[i][fromStage];
+            long to = mCompleted[i][toStage];
+            if (from != 0 && to != 0)
+                deltas[n++] = to - from;
+        }
+        if (n == 0)
+            return -1;
+        Arrays.sort(deltas, 0, n);
+        int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+        return deltas[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    /**
+     * @return p50/p90/p99 in milliseconds for each step between consecutive stages and for the
+     *         whole trace from send to footer.
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(getTraceCount()).append(" traces\n");
+        for (int stage = STAGE_CLICK; stage < STAGE_ACK; stage++) {
+            appendLine(summary, stage, stage + 1);
+        }
+        appendLine(summary, STAGE_SEND, STAGE_FOOTER_COMPLETE);
+        appendLine(summary, STAGE_CLICK, STAGE_ACK);
+        return summary.toString();
+    }
+
+    private void appendLine(StringBuilder summary, int from, int to) {
+        long p50 = percentileNanos(from, to, 50);
+        if (p50 < 0)
+            return;
+        summary.append(String.format("%s -> %s: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms\n",
+                STAGE_NAMES[from], STAGE_NAMES[to], p50 / 1e6,
+                percentileNanos(from, to, 90) / 1e6, percentileNanos(from, to, 99) / 1e6));
+    }
+}
@@ -0,0 +1,180 @@
+package com.six15.eyeweardemo;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * Tunes how fast and how a connection writes packets, based on what the link does at runtime.
+ * Write completion latency and failures are measured per write; the packet rate follows an
+ * AIMD rule like TCP congestion control (additive increase per clean completion, halve on a
+ * failure or a latency spike) and the write type is upgraded to write-without-response once
+ * the link has been clean for a while, if the TX characteristic supports it.
+ *
+ * <p>Write-without-response completes as soon as the stack has buffered the packet, so losses
+ * no longer show up as failed writes.  While in that mode a frame the eyewear never fully
+ * acknowledges is reported through {@link #onDeliveryFailed(long)} and counts as congestion.
+ *
+ * <p>The payload size is reported but not tuned: SerialProtocol frames are fixed 20 byte
+ * packets that the eyewear firmware expects.  The in-flight window is not tuned either and stays
+ * at one write: Android runs one GATT operation per connection at a time, write-without-response
+ * included, so FrameWriter waits for each write's callback before starting the next and the
+ * rate is the only knob.
+ *
+ * <p>Called from the writer thread and the GATT binder thread; methods are synchronized.
+ */
+public class LinkAutotuner {
+
+    public static final int WRITE_TYPE_DEFAULT = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    public static final int WRITE_TYPE_NO_RESPONSE = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+
+    public static final double MIN_RATE = 10;
+    public static final double MAX_RATE = 2000;
+    public static final double INITIAL_RATE = 100;
+
+    // rate gained per second of clean sending, in packets/s
+    private static final double ADDITIVE_INCREASE = 100;
+    private static final double MULTIPLICATIVE_DECREASE = 0.5;
+    // a completion this many times slower than the running average counts as congestion
+    private static final double LATENCY_SPIKE_FACTOR = 4;
+    private static final double EWMA_WEIGHT = 0.125;
+    private static final int NO_RESPONSE_STREAK = 200;
+
+    private double mRate = INITIAL_RATE;
+    private int mWriteType = WRITE_TYPE_DEFAULT;
+    private int mNoResponseStreak = NO_RESPONSE_STREAK;
+    // set from the TX characteristic's properties at service discovery
+    private boolean bNoResponseSupported = false;
+
+    private long mWriteStarted = -1;
+    private double mAverageLatency = 0;
+    private long mLastDecrease = 0;
+    private boolean bDecreased = false;
+    private int mCleanStreak = 0;
+
+    private long mWrites = 0;
+    private long mFailures = 0;
+    private long mRejected = 0;
+    private double mErrorRate = 0;
+
+    /**
+     * Tells the tuner whether the TX characteristic has PROPERTY_WRITE_NO_RESPONSE.  Without
+     * it every write stays acknowledged.
+     */
+    public synchronized void setNoResponseSupported(boolean supported) {
+        bNoResponseSupported = supported;
+        if (!supported)
+            mWriteType = WRITE_TYPE_DEFAULT;
+    }
+
+    public synchronized void onWriteStarted(long nowNanos) {
+        mWriteStarted = nowNanos;
+        mWrites++;
+    }
+
+    /**
+     * writeCharacteristic returned false, so no completion callback will follow.
+     */
+    public synchronized void onWriteRejected(long nowNanos) {
+        mRejected++;
+        mWriteStarted = -1;
+        mErrorRate += EWMA_WEIGHT * (1 - mErrorRate);
+        congestion(nowNanos);
+    }
+
+    public synchronized void onWriteCompleted(long nowNanos, boolean success) {
+        mErrorRate += EWMA_WEIGHT * ((success ? 0 : 1) - mErrorRate);
+        if (mWriteStarted >= 0) {
+            long latency = nowNanos - mWriteStarted;
+            mWriteStarted = -1;
+            boolean spike = mAverageLatency > 0 && latency > mAverageLatency * LATENCY_SPIKE_FACTOR;
+            mAverageLatency = mAverageLatency == 0 ? latency
+                    : mAverageLatency + EWMA_WEIGHT * (latency - mAverageLatency);
+            if (success && spike) {
+                congestion(nowNanos);
+                return;
+            }
+        }
+
+        if (!success) {
+            mFailures++;
+            congestion(nowNanos);
+            return;
+        }
+
+        // additive increase, spread over the completions of one second at the current rate
+        mRate = Math.min(MAX_RATE, mRate + ADDITIVE_INCREASE / mRate);
+        mCleanStreak++;
+        if (bNoResponseSupported && mWriteType == WRITE_TYPE_DEFAULT && mCleanStreak >= mNoResponseStreak) {
+            mWriteType = WRITE_TYPE_NO_RESPONSE;
+        }
+    }
+
+    /**
+     * A frame was written in full but the eyewear did not acknowledge all of it in time, so
+     * packets were lost on the way.
+     */
+    public synchronized void onDeliveryFailed(long nowNanos) {
+        mFailures++;
+        mErrorRate += EWMA_WEIGHT * (1 - mErrorRate);
+        congestion(nowNanos);
+    }
+
+    private void congestion(long nowNanos) {
+        mCleanStreak = 0;
+        if (mWriteType == WRITE_TYPE_NO_RESPONSE) {
+            // fall back to acknowledged writes and wait longer before trying again
+            mWriteType = WRITE_TYPE_DEFAULT;
+            mNoResponseStreak = Math.min(mNoResponseStreak * 2, 10000);
+        }
+        // at most one decrease per average round trip, like one halving per window in TCP
+        if (!bDecreased || nowNanos - mLastDecrease >= (long) mAverageLatency) {
+            mRate = Math.max(MIN_RATE, mRate * MULTIPLICATIVE_DECREASE);
+            mLastDecrease = nowNanos;
+            bDecreased = true;
+        }
+    }
+
+    /**
+     * @return the write type to use, WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE.
+     */
+    public synchronized int getWriteType() {
+        return mWriteType;
+    }
+
+    public synchronized double getPacketsPerSecond() {
+        return mRate;
+    }
+
+    /**
+     * @return the minimum spacing between packet writes at the current rate.
+     */
+    public synchronized long getInterPacketDelayNanos() {
+        return (long) (1000000000L / mRate);
+    }
+
+    public int getPayloadSize() {
+        return SerialProtocol.PACKET_SIZE;
+    }
+
+    public synchronized long getAverageLatencyNanos() {
+        return (long) mAverageLatency;
+    }
+
+    public synchronized double getErrorRate() {
+        return mErrorRate;
+    }
+
+    public synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailures + mRejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("rate=%.0f pkt/s writeType=%s latency=%dus errors=%.3f",
+                mRate, mWriteType == WRITE_TYPE_NO_RESPONSE ? "no-response" : "default",
+                (long) mAverageLatency / 1000, mErrorRate);
+    }
+}
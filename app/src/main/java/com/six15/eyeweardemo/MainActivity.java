@@ -84,7 +84,13 @@ public class MainActivity extends AppCompatActivity {
     private void sendCommand(String commandString){
         Log.d(TAG, "Sending Command: " + commandString);
         if(mBluetoothLeService != null){
-            mBluetoothLeService.sendCommandString(commandString);
+            LatencyTracer tracer = LatencyTracer.getInstance();
+            tracer.markClick();
+            try {
+                mBluetoothLeService.sendCommandString(commandString);
+            } finally {
+                tracer.clearClick();
+            }
         }
         else{
             Log.d(TAG, "BluetoothSevice is NULL");
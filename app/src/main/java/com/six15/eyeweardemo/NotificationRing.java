@@ -0,0 +1,125 @@
+package com.six15.eyeweardemo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer/single-consumer ring of fixed size byte slots for notification values.  The
+ * GATT binder thread copies each value into a preallocated slot and returns; a consumer thread
+ * takes them off in order.  Neither side locks or allocates: the producer publishes a slot by
+ * advancing the tail, the consumer frees it by advancing the head.  When
+ * the ring is full the value is dropped and counted rather than blocking the binder thread.
+ */
+public class NotificationRing {
+
+    // the largest attribute value ATT allows
+    public static final int MAX_VALUE_SIZE = 512;
+
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final int mMask;
+
+    // next slot to read, written only by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // next slot to write, written only by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile Thread mWaiter = null;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two.
+     */
+    public NotificationRing(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mSlots = new byte[size][slotSize];
+        mLengths = new int[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Copies a value into the next free slot.  Producer thread only.
+     *
+     * @return false if the value was dropped because the ring is full or the value is too long.
+     */
+    public boolean offer(byte[] value) {
+        long tail = mTail.get();
+        if (value == null || value.length > mSlots[0].length || tail - mHead.get() >= mSlots.length) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) tail & mMask;
+        System.arraycopy(value, 0, mSlots[slot], 0, value.length);
+        mLengths[slot] = value.length;
+        // a full volatile write, so the waiter check below cannot be reordered before it
+        mTail.set(tail + 1);
+
+        Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+        return true;
+    }
+
+    /**
+     * Copies the oldest value into {@code out} and frees its slot.  Consumer thread only.
+     *
+     * @return the value's length, or -1 if the ring is empty.
+     */
+    public int poll(byte[] out) {
+        long head = mHead.get();
+        if (head == mTail.get())
+            return -1;
+        int slot = (int) head & mMask;
+        int length = mLengths[slot];
+        System.arraycopy(mSlots[slot], 0, out, 0, length);
+        mHead.lazySet(head + 1);
+        return length;
+    }
+
+    /**
+     * Like {@link #poll(byte[])} but parks the consumer until a value arrives or the timeout
+     * passes.
+     *
+     * @return the value's length, or -1 on timeout.
+     * @throws InterruptedException if the consumer thread is interrupted while waiting.
+     */
+    public int take(byte[] out, long timeoutNanos) throws InterruptedException {
+        int length = poll(out);
+        if (length >= 0)
+            return length;
+        long deadline = System.nanoTime() + timeoutNanos;
+        mWaiter = Thread.currentThread();
+        try {
+            while ((length = poll(out)) < 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)));
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            mWaiter = null;
+        }
+        return length;
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    public int getSlotSize() {
+        return mSlots[0].length;
+    }
+
+    /**
+     * @return how many values were dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,197 @@
+package com.six15.eyeweardemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of frames waiting to go out to one eyewear, kept in a memory-mapped file
+ * so queued frames survive the process being killed.  Writes land in the shared mapping and
+ * reach the page cache without an fsync per frame.
+ *
+ * <p>File layout: a 16 byte header holding the checkpoint, the offset of the oldest frame not
+ * yet fully sent, followed by records of
+ * {@code [magic][packet count][packets, 20 bytes each][crc32 of packets]}.  The record magic is
+ * written last, so a record torn by a crash is never replayed.
+ *
+ * <p>Offsets handed out by {@link #append} and {@link #pendingOffsets()} are logical: they keep
+ * growing when pending records are moved down to reuse space, so an offset held by a queued
+ * frame stays valid across that.  They are only meaningful until the journal is closed.
+ *
+ * <p>Not thread safe; callers serialize access (EyewearConnection holds its mJournalLock).
+ */
+public class OutboundJournal {
+
+    private static final int FILE_MAGIC = 0x534A4E31;   // "SJN1"
+    private static final int RECORD_MAGIC = 0x53465231; // "SFR1"
+    private static final int HEADER_SIZE = 16;
+    private static final int CHECKPOINT_OFFSET = 8;
+    private static final int RECORD_OVERHEAD = 12;
+
+    private static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mMap;
+    private long mCheckpoint;
+    private long mWritePosition;
+    // added to file positions to get logical offsets; grows by the bytes reclaimed on each move
+    private long mBase = 0;
+
+    public OutboundJournal(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    public OutboundJournal(File file, int capacity) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        long size = Math.max(mChannel.size(), Math.max(capacity, HEADER_SIZE));
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (mMap.getInt(0) != FILE_MAGIC) {
+            mMap.putInt(0, FILE_MAGIC);
+            setCheckpoint(HEADER_SIZE);
+            mMap.putInt(HEADER_SIZE, 0);
+        } else {
+            mCheckpoint = mMap.getLong(CHECKPOINT_OFFSET);
+        }
+        mWritePosition = scanRecords(null);
+    }
+
+    /**
+     * Appends a frame to the journal.
+     *
+     * @return the journal offset just past the record, to pass to {@link #checkpoint(long)}
+     *         once the frame has been sent.
+     */
+    public long append(EncodedFrame frame) throws IOException {
+        int packetCount = frame.getPacketCount();
+        int recordSize = RECORD_OVERHEAD + packetCount * SerialProtocol.PACKET_SIZE;
+        ensureCapacity(recordSize + 4);
+
+        int start = (int) mWritePosition;
+        CRC32 checksum = new CRC32();
+        int pos = start + 8;
+        for (int i = 0; i < packetCount; i++) {
+            byte[] packet = frame.getPacket(i);
+            mMap.position(pos);
+            mMap.put(packet, 0, SerialProtocol.PACKET_SIZE);
+            checksum.update(packet, 0, SerialProtocol.PACKET_SIZE);
+            pos += SerialProtocol.PACKET_SIZE;
+        }
+        mMap.putInt(pos, (int) checksum.getValue());
+        mMap.putInt(start + 4, packetCount);
+        // terminate the log before publishing the record
+        mMap.putInt(start + recordSize, 0);
+        mMap.putInt(start, RECORD_MAGIC);
+
+        mWritePosition = start + recordSize;
+        return mBase + mWritePosition;
+    }
+
+    /**
+     * Marks every record ending at or before {@code offset} as delivered.
+     */
+    public void checkpoint(long offset) {
+        long position = offset - mBase;
+        if (position > mCheckpoint && position <= mWritePosition) {
+            setCheckpoint(position);
+        }
+    }
+
+    /**
+     * Reads back the frames that were journaled but not checkpointed, oldest first.
+     */
+    public List<EncodedFrame> replay() {
+        List<EncodedFrame> frames = new ArrayList<>();
+        scanRecords(frames);
+        return frames;
+    }
+
+    /**
+     * @return offsets just past each pending record, matching the frames from {@link #replay()}.
+     */
+    public List<Long> pendingOffsets() {
+        List<Long> offsets = new ArrayList<>();
+        long pos = mCheckpoint;
+        while (pos < mWritePosition) {
+            pos += RECORD_OVERHEAD + mMap.getInt((int) pos + 4) * SerialProtocol.PACKET_SIZE;
+            offsets.add(mBase + pos);
+        }
+        return offsets;
+    }
+
+    public boolean isEmpty() {
+        return mCheckpoint >= mWritePosition;
+    }
+
+    public void close() throws IOException {
+        mMap.force();
+        mChannel.close();
+        mFile.close();
+    }
+
+    private void setCheckpoint(long offset) {
+        mCheckpoint = offset;
+        mMap.putLong(CHECKPOINT_OFFSET, offset);
+    }
+
+    // Walks the valid records from the checkpoint, optionally decoding them, and returns the
+    // offset where the next record should be written.
+    private long scanRecords(List<EncodedFrame> frames) {
+        int pos = (int) mCheckpoint;
+        int limit = mMap.capacity();
+        while (pos + RECORD_OVERHEAD <= limit && mMap.getInt(pos) == RECORD_MAGIC) {
+            int packetCount = mMap.getInt(pos + 4);
+            int recordSize = RECORD_OVERHEAD + packetCount * SerialProtocol.PACKET_SIZE;
+            if (packetCount < 2 || pos + recordSize > limit)
+                break;
+
+            byte[][] packets = new byte[packetCount][];
+            CRC32 checksum = new CRC32();
+            mMap.position(pos + 8);
+            for (int i = 0; i < packetCount; i++) {
+                packets[i] = new byte[SerialProtocol.PACKET_SIZE];
+                mMap.get(packets[i]);
+                checksum.update(packets[i], 0, SerialProtocol.PACKET_SIZE);
+            }
+            if (mMap.getInt(pos + recordSize - 4) != (int) checksum.getValue())
+                break;
+            if (frames != null)
+                frames.add(EncodedFrame.fromPackets(packets));
+            pos += recordSize;
+        }
+        return pos;
+    }
+
+    // Makes room for a record: first by moving pending records down over delivered ones, then
+    // by growing the mapping.  Records are only moved when the copy does not overlap them, so a
+    // crash mid-copy still leaves the originals at the old checkpoint.
+    private void ensureCapacity(int needed) throws IOException {
+        if (mWritePosition + needed <= mMap.capacity())
+            return;
+
+        int pending = (int) (mWritePosition - mCheckpoint);
+        if (pending + 4 <= mCheckpoint - HEADER_SIZE) {
+            byte[] live = new byte[pending];
+            mMap.position((int) mCheckpoint);
+            mMap.get(live);
+            mMap.position(HEADER_SIZE);
+            mMap.put(live);
+            mMap.putInt(HEADER_SIZE + pending, 0);
+            mBase += mCheckpoint - HEADER_SIZE;
+            setCheckpoint(HEADER_SIZE);
+            mWritePosition = HEADER_SIZE + pending;
+        }
+        if (mWritePosition + needed > mMap.capacity()) {
+            long size = Math.max((long) mMap.capacity() * 2, mWritePosition + needed);
+            mMap.force();
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.six15.eyeweardemo;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records every packet of a connection, both directions, with its {@link System#nanoTime()}
+ * stamp, so a misbehaving session can be replayed later with the same timing (see
+ * {@code CaptureReplay} in the tests).
+ *
+ * <p>File layout: a 16 byte header {@code [magic][version][first timestamp (8)]} followed by
+ * records of {@code [direction][timestamp delta, varint][length, varint][bytes]}.  Deltas are
+ * taken from the previous record, so a 20 byte packet costs about 25 bytes.  Records are
+ * gathered in a direct buffer; a full buffer is swapped for a spare one and written to the
+ * file on the capture's own thread, so {@link #record} never waits for the file.  Packets
+ * that arrive while both buffers are full, or once the file reaches its size limit, are
+ * dropped and counted.
+ *
+ * <p>Methods are synchronized; packets are recorded from the writer and the binder thread.
+ * {@link #flush()} and {@link #close()} wait for the buffered records to reach the file.
+ */
+public class PacketCapture implements Closeable {
+
+    public static final int DIRECTION_TX = 0;
+    public static final int DIRECTION_RX = 1;
+
+    static final int FILE_MAGIC = 0x53435031; // "SCP1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // direction, two varints of up to 10 bytes
+    private static final int RECORD_OVERHEAD = 21;
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final long mMaxBytes;
+    // record() fills mBuffer; the other buffer is mSpare while free, mPending while it waits
+    // for the writer thread and neither while the writer thread has it
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer mSpare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer mPending = null;
+    private long mHandedOff = 0;
+    private long mLastTimestamp = -1;
+    private long mRecorded = 0;
+    private long mDropped = 0;
+    private IOException mError = null;
+    private boolean bClosed = false;
+
+    public PacketCapture(File file) throws IOException {
+        this(file, DEFAULT_MAX_BYTES);
+    }
+
+    public PacketCapture(File file, long maxBytes) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mMaxBytes = maxBytes;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBuffers();
+            }
+        }, "PacketCapture " + file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Records one packet.  Values longer than a notification can be are not expected and are
+     * dropped like packets past the size limit, or arriving while both buffers are full.
+     */
+    public synchronized void record(int direction, long timestampNanos, byte[] value) {
+        if (bClosed)
+            return;
+        int recordSize = RECORD_OVERHEAD + value.length;
+        if (value.length > NotificationRing.MAX_VALUE_SIZE
+                || mHandedOff + mBuffer.position() + recordSize + HEADER_SIZE > mMaxBytes) {
+            mDropped++;
+            return;
+        }
+        if (mLastTimestamp < 0) {
+            mBuffer.putInt(FILE_MAGIC);
+            mBuffer.putInt(VERSION);
+            mBuffer.putLong(timestampNanos);
+            mLastTimestamp = timestampNanos;
+        }
+        if (mBuffer.remaining() < recordSize && !handOff()) {
+            // the writer thread is behind, rather drop than wait for the file
+            mDropped++;
+            return;
+        }
+        // stamps from different threads can be a little out of order
+        long delta = Math.max(0, timestampNanos - mLastTimestamp);
+        mLastTimestamp += delta;
+        mBuffer.put((byte) direction);
+        putVarint(mBuffer, delta);
+        putVarint(mBuffer, value.length);
+        mBuffer.put(value);
+        mRecorded++;
+    }
+
+    public synchronized long getRecordedCount() {
+        return mRecorded;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Writes the buffered records to the file, waiting for the writer thread.
+     */
+    public synchronized void flush() throws IOException {
+        if (!bClosed)
+            drain();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (bClosed)
+            return;
+        try {
+            drain();
+        } finally {
+            bClosed = true;
+            notifyAll();
+            mStream.close();
+        }
+    }
+
+    // Passes the filled buffer to the writer thread, if the spare one is free to take its place.
+    private boolean handOff() {
+        if (mSpare == null)
+            return false;
+        mHandedOff += mBuffer.position();
+        mBuffer.flip();
+        mPending = mBuffer;
+        mBuffer = mSpare;
+        mSpare = null;
+        notifyAll();
+        return true;
+    }
+
+    private void drain() throws IOException {
+        awaitWriter();
+        if (mBuffer.position() > 0) {
+            handOff();
+            awaitWriter();
+        }
+        if (mError != null)
+            throw mError;
+    }
+
+    private void awaitWriter() throws InterruptedIOException {
+        while (mSpare == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    // Writer thread: writes handed off buffers until the capture is closed.
+    private void writeBuffers() {
+        while (true) {
+            ByteBuffer buffer;
+            synchronized (this) {
+                while (mPending == null && !bClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mPending == null)
+                    return;
+                buffer = mPending;
+                mPending = null;
+            }
+            IOException error = null;
+            try {
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            buffer.clear();
+            synchronized (this) {
+                if (error != null && mError == null)
+                    mError = error;
+                mSpare = buffer;
+                notifyAll();
+            }
+        }
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * One captured packet.
+     */
+    public static class Record {
+        public final int direction;
+        public final long timestampNanos;
+        public final byte[] value;
+
+        Record(int direction, long timestampNanos, byte[] value) {
+            this.direction = direction;
+            this.timestampNanos = timestampNanos;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Reads a capture file back record by record.
+     */
+    public static class Reader implements Closeable {
+        private final FileInputStream mStream;
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long mTimestamp;
+        private boolean bEmpty = false;
+
+        public Reader(File file) throws IOException {
+            mStream = new FileInputStream(file);
+            mChannel = mStream.getChannel();
+            mBuffer.flip();
+            if (!fill(HEADER_SIZE)) {
+                // nothing was ever recorded
+                bEmpty = true;
+                return;
+            }
+            if (mBuffer.getInt() != FILE_MAGIC || mBuffer.getInt() != VERSION) {
+                close();
+                throw new IOException("Not a packet capture: " + file);
+            }
+            mTimestamp = mBuffer.getLong();
+        }
+
+        /**
+         * @return the next record, or null at the end of the capture.  A record cut short by
+         *         the process dying ends the capture.
+         */
+        public Record next() throws IOException {
+            if (bEmpty || !fill(1))
+                return null;
+            try {
+                fill(RECORD_OVERHEAD);
+                int direction = mBuffer.get();
+                long delta = getVarint();
+                int length = (int) getVarint();
+                if (length < 0 || length > NotificationRing.MAX_VALUE_SIZE || !fill(length))
+                    return null;
+                byte[] value = new byte[length];
+                mBuffer.get(value);
+                mTimestamp += delta;
+                return new Record(direction, mTimestamp, value);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mStream.close();
+        }
+
+        // Makes at least {@code count} bytes available unless the file ends first.
+        private boolean fill(int count) throws IOException {
+            if (mBuffer.remaining() >= count)
+                return true;
+            mBuffer.compact();
+            while (mBuffer.position() < count) {
+                if (mChannel.read(mBuffer) < 0)
+                    break;
+            }
+            mBuffer.flip();
+            return mBuffer.remaining() >= count;
+        }
+
+        private long getVarint() throws EOFException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!mBuffer.hasRemaining())
+                    throw new EOFException();
+                byte b = mBuffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.six15.eyeweardemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes large frames on several cores.  The payload is split on packet boundaries into one
+ * range per core; each task computes the CRC32 of its range and builds its data packets, and the
+ * partial CRCs are then combined into the CRC of the whole payload (the GF(2) matrix method from
+ * zlib's crc32_combine).  The resulting {@link EncodedFrame} is byte for byte what
+ * {@link EncodedFrame#encode} produces.
+ *
+ * <p>Uses a fixed thread pool rather than a ForkJoinPool, which needs API 21.
+ */
+public class ParallelFrameEncoder {
+
+    // below this handing out tasks costs more than it saves
+    static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    private static final long CRC32_POLYNOMIAL = 0xEDB88320L;
+
+    private static ExecutorService sPool;
+
+    private static synchronized ExecutorService sharedPool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "ParallelFrameEncoder");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sPool;
+    }
+
+    /**
+     * Encodes a frame, in parallel when it is large enough for that to pay off.
+     */
+    public static EncodedFrame encode(SerialProtocol.FrameTypes type, byte[] data) {
+        int parts = Runtime.getRuntime().availableProcessors();
+        if (data.length < PARALLEL_THRESHOLD || parts < 2)
+            return EncodedFrame.encode(type, data);
+        return encode(type, data, sharedPool(), parts);
+    }
+
+    static EncodedFrame encode(SerialProtocol.FrameTypes type, final byte[] data,
+                               ExecutorService executor, int parts) {
+        if (type != SerialProtocol.FrameTypes.STRING && type != SerialProtocol.FrameTypes.IMAGE)
+            return EncodedFrame.encode(type, data);
+        // validates the length the same way the sequential encoder does
+        final int dataPackets = new SerialProtocol(type, data.length).getmTotal_packets();
+        final byte[][] packets = new byte[dataPackets + 2][];
+        final int packetsPerPart = (dataPackets + parts - 1) / parts;
+
+        List<Future<Long>> partCrcs = new ArrayList<>(parts);
+        List<Integer> partLengths = new ArrayList<>(parts);
+        for (int first = 0; first < dataPackets; first += packetsPerPart) {
+            final int from = first;
+            final int to = Math.min(dataPackets, first + packetsPerPart);
+            final int start = from * SerialProtocol.PACKET_PAYLOAD_SIZE;
+            final int end = Math.min(data.length, to * SerialProtocol.PACKET_PAYLOAD_SIZE);
+            partLengths.add(end - start);
+            partCrcs.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    CRC32 crc = new CRC32();
+                    crc.update(data, start, end - start);
+                    for (int i = from; i < to; i++) {
+                        packets[i + 1] = SerialProtocol.buildDataPacket(data, i);
+                    }
+                    return crc.getValue();
+                }
+            }));
+        }
+
+        long crc = 0;
+        try {
+            for (int i = 0; i < partCrcs.size(); i++) {
+                long partCrc = partCrcs.get(i).get();
+                crc = i == 0 ? partCrc : combineCrc32(crc, partCrc, partLengths.get(i));
+            }
+        } catch (InterruptedException e) {
+            for (Future<Long> part : partCrcs) {
+                part.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return EncodedFrame.encode(type, data);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Frame encoding failed", e.getCause());
+        }
+
+        packets[0] = SerialProtocol.buildFrameMarker(SerialProtocol.START_OF_FRAME, type, data.length, crc);
+        packets[dataPackets + 1] = SerialProtocol.buildFrameMarker(SerialProtocol.END_OF_FRAME, type, data.length, crc);
+        return new EncodedFrame(type, data.length, crc, packets);
+    }
+
+    /**
+     * Returns the CRC32 of two concatenated blocks given the CRC32 of each and the length of the
+     * second, in O(log len2) without touching the data.
+     */
+    static long combineCrc32(long crc1, long crc2, long len2) {
+        if (len2 <= 0)
+            return crc1;
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // operator for one zero bit
+        odd[0] = CRC32_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply len2 zero bytes to crc1, squaring the operator for each bit of len2
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0)
+                crc1 = gf2MatrixTimes(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0)
+                break;
+
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0)
+                crc1 = gf2MatrixTimes(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0)
+                sum ^= matrix[i];
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.six15.eyeweardemo;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Scan results keyed by device address.  Repeated advertisements from the same device only
+ * update its RSSI and last-seen time, and the list handed to the UI is ordered strongest
+ * signal first.  Sorting is deferred until {@link #copySorted(List)} is called when the UI
+ * refreshes, so a burst of advertisements costs one hash lookup each.
+ */
+public class ScanResultStore {
+
+    public static class ScanEntry {
+        private final String mAddress;
+        private final BluetoothDevice mDevice;
+        private int mRssi;
+        private long mLastSeen;
+
+        ScanEntry(String address, BluetoothDevice device) {
+            mAddress = address;
+            mDevice = device;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+    }
+
+    private static final Comparator<ScanEntry> BY_RSSI = new Comparator<ScanEntry>() {
+        @Override
+        public int compare(ScanEntry lhs, ScanEntry rhs) {
+            return rhs.mRssi < lhs.mRssi ? -1 : (rhs.mRssi == lhs.mRssi ? 0 : 1);
+        }
+    };
+
+    private final HashMap<String, ScanEntry> mEntries = new HashMap<>();
+    private final ArrayList<ScanEntry> mSorted = new ArrayList<>();
+    private boolean mDirty = false;
+
+    /**
+     * Records an advertisement.
+     *
+     * @return true if the device was not in the store before.
+     */
+    public boolean update(BluetoothDevice device, int rssi, long now) {
+        return update(device.getAddress(), device, rssi, now);
+    }
+
+    boolean update(String address, BluetoothDevice device, int rssi, long now) {
+        ScanEntry entry = mEntries.get(address);
+        boolean added = false;
+        if (entry == null) {
+            entry = new ScanEntry(address, device);
+            mEntries.put(address, entry);
+            mSorted.add(entry);
+            added = true;
+        }
+        if (added || entry.mRssi != rssi) {
+            mDirty = true;
+        }
+        entry.mRssi = rssi;
+        entry.mLastSeen = now;
+        return added;
+    }
+
+    /**
+     * Removes devices that have not advertised since {@code olderThan}.
+     *
+     * @return the number of devices removed.
+     */
+    public int expire(long olderThan) {
+        int removed = 0;
+        Iterator<ScanEntry> it = mSorted.iterator();
+        while (it.hasNext()) {
+            ScanEntry entry = it.next();
+            if (entry.mLastSeen < olderThan) {
+                it.remove();
+                mEntries.remove(entry.mAddress);
+                mDirty = true;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Replaces the contents of {@code out} with the devices ordered by RSSI, strongest first.
+     */
+    public void copySorted(List<ScanEntry> out) {
+        if (mDirty) {
+            Collections.sort(mSorted, BY_RSSI);
+            mDirty = false;
+        }
+        out.clear();
+        out.addAll(mSorted);
+    }
+
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    public int size() {
+        return mSorted.size();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mSorted.clear();
+        mDirty = false;
+    }
+}
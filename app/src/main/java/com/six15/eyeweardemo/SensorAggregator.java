@@ -0,0 +1,167 @@
+package com.six15.eyeweardemo;
+
+import java.util.Locale;
+
+/**
+ * Rolling statistics over the recent samples of one sensor, e.g. a heart rate strap that
+ * notifies once a second or faster.  Samples go into a fixed ring of primitive arrays, so
+ * recording one allocates nothing, and a sample leaves the window when the ring is full or it
+ * is older than the window length.
+ *
+ * <p>Min and max are kept in monotonic queues of sample sequence numbers, the sum for the
+ * average is updated as samples enter and leave, so every statistic is O(1) per sample
+ * (amortized for min and max).
+ *
+ * <p>{@link #pollOverlay(long)} hands out a summary at most once per overlay interval, for
+ * pushing to the eyewear and the UI without sending one update per sample.
+ *
+ * <p>Not thread safe; EyewearConnection feeds it from the binder thread only.
+ */
+public class SensorAggregator {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_WINDOW_MS = 30 * 1000;
+    public static final long DEFAULT_OVERLAY_INTERVAL_MS = 1000;
+
+    private final int mCapacity;
+    private final long mWindowNanos;
+    private final long mOverlayIntervalNanos;
+
+    // sample n lives in slot n % mCapacity; the window is samples mOldest until mNext - 1
+    private final long[] mTimestamps;
+    private final int[] mValues;
+    private long mOldest = 0;
+    private long mNext = 0;
+    private long mSum = 0;
+
+    // sample numbers with increasing values (min) and decreasing values (max), oldest first;
+    // also rings of mCapacity, indexed by position
+    private final long[] mMinQueue;
+    private final long[] mMaxQueue;
+    private int mMinHead = 0, mMinSize = 0;
+    private int mMaxHead = 0, mMaxSize = 0;
+
+    private long mLastOverlay = 0;
+    private boolean bOverlayPending = false;
+
+    public SensorAggregator() {
+        this(DEFAULT_CAPACITY, DEFAULT_WINDOW_MS, DEFAULT_OVERLAY_INTERVAL_MS);
+    }
+
+    public SensorAggregator(int capacity, long windowMs, long overlayIntervalMs) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        mCapacity = capacity;
+        mWindowNanos = windowMs * 1000000L;
+        mOverlayIntervalNanos = overlayIntervalMs * 1000000L;
+        mTimestamps = new long[capacity];
+        mValues = new int[capacity];
+        mMinQueue = new long[capacity];
+        mMaxQueue = new long[capacity];
+    }
+
+    /**
+     * Adds a sample taken at {@code timestampNanos}, a {@link System#nanoTime()} value.
+     */
+    public void record(long timestampNanos, int value) {
+        if (mNext - mOldest == mCapacity)
+            evictOldest();
+        int slot = (int) (mNext % mCapacity);
+        mTimestamps[slot] = timestampNanos;
+        mValues[slot] = value;
+        mSum += value;
+
+        while (mMinSize > 0 && valueOf(mMinQueue[(mMinHead + mMinSize - 1) % mCapacity]) >= value) {
+            mMinSize--;
+        }
+        mMinQueue[(mMinHead + mMinSize++) % mCapacity] = mNext;
+        while (mMaxSize > 0 && valueOf(mMaxQueue[(mMaxHead + mMaxSize - 1) % mCapacity]) <= value) {
+            mMaxSize--;
+        }
+        mMaxQueue[(mMaxHead + mMaxSize++) % mCapacity] = mNext;
+
+        mNext++;
+        bOverlayPending = true;
+        expire(timestampNanos);
+    }
+
+    /**
+     * Drops the samples that are older than the window at {@code nowNanos}.
+     */
+    public void expire(long nowNanos) {
+        while (mOldest < mNext && nowNanos - mTimestamps[(int) (mOldest % mCapacity)] > mWindowNanos) {
+            evictOldest();
+        }
+    }
+
+    public int getCount() {
+        return (int) (mNext - mOldest);
+    }
+
+    /**
+     * @return the latest sample, or 0 without samples.
+     */
+    public int getLatest() {
+        return getCount() == 0 ? 0 : valueOf(mNext - 1);
+    }
+
+    public int getMin() {
+        return mMinSize == 0 ? 0 : valueOf(mMinQueue[mMinHead]);
+    }
+
+    public int getMax() {
+        return mMaxSize == 0 ? 0 : valueOf(mMaxQueue[mMaxHead]);
+    }
+
+    public double getAverage() {
+        int count = getCount();
+        return count == 0 ? 0 : (double) mSum / count;
+    }
+
+    /**
+     * @return the summary to show if a sample came in since the last one handed out and at
+     *         least the overlay interval has passed, null otherwise.
+     */
+    public String pollOverlay(long nowNanos) {
+        if (!bOverlayPending || getCount() == 0
+                || (mLastOverlay != 0 && nowNanos - mLastOverlay < mOverlayIntervalNanos))
+            return null;
+        mLastOverlay = nowNanos;
+        bOverlayPending = false;
+        return String.format(Locale.US, "HR %d (%d-%d avg %.0f)",
+                getLatest(), getMin(), getMax(), getAverage());
+    }
+
+    private int valueOf(long sample) {
+        return mValues[(int) (sample % mCapacity)];
+    }
+
+    private void evictOldest() {
+        mSum -= valueOf(mOldest);
+        if (mMinSize > 0 && mMinQueue[mMinHead] == mOldest) {
+            mMinHead = (mMinHead + 1) % mCapacity;
+            mMinSize--;
+        }
+        if (mMaxSize > 0 && mMaxQueue[mMaxHead] == mOldest) {
+            mMaxHead = (mMaxHead + 1) % mCapacity;
+            mMaxSize--;
+        }
+        mOldest++;
+    }
+
+    /**
+     * Parses a Heart Rate Measurement value as per the profile specification: the flags byte
+     * says whether the rate is a UINT8 or a little endian UINT16.
+     *
+     * @return the rate in beats per minute, or -1 if the value is too short.
+     */
+    public static int parseHeartRate(byte[] value) {
+        if (value == null || value.length < 2)
+            return -1;
+        if ((value[0] & 0x01) == 0)
+            return value[1] & 0xFF;
+        if (value.length < 3)
+            return -1;
+        return (value[1] & 0xFF) | (value[2] & 0xFF) << 8;
+    }
+}
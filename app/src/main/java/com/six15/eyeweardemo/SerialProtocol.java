@@ -14,9 +14,22 @@ public class SerialProtocol {
     private static final String TAG = "SerialProtocol";
 
     public enum FrameTypes {
-        STRING, IMAGE, ACKNOWLEDGE
+        STRING, IMAGE, ACKNOWLEDGE, RESUME, BULK
     }
 
+    public static final byte START_OF_FRAME = (byte)0xAB;
+    public static final byte END_OF_FRAME = (byte)0xBA;
+    public static final byte TYPE_STRING = (byte)0xA3;
+    public static final byte TYPE_ACKNOWLEDGE = (byte)0xA5;
+    public static final byte TYPE_IMAGE = (byte)0xA6;
+    public static final byte TYPE_RESUME = (byte)0xA7;
+    public static final byte TYPE_BULK = (byte)0xA8;
+    public static final byte TYPE_BLOCK_ACKNOWLEDGE = (byte)0xA9;
+
+    public static final int PACKET_SIZE = 20;
+    public static final int PACKET_PAYLOAD_SIZE = 19;
+    public static final int MAX_DATA_LENGTH = 1245165;
+
     private FrameTypes mData_type;
     private long mFrame_id;
     private long mData_len;
@@ -27,9 +40,10 @@ public class SerialProtocol {
 
 
     private int mCurrentPacket;
+    private int mResumePacket = 0;
 
     public SerialProtocol(FrameTypes frame_type, int data_length) {
-        if (data_length < 1 || data_length > 1245165) {
+        if (data_length < 1 || data_length > MAX_DATA_LENGTH) {
             throw new ExceptionInInitializerError();
         }
 
@@ -43,8 +57,8 @@ public class SerialProtocol {
             mData_crc = 0;
         } else {
             mData_len = data_length;
-            mTotal_packets = (short) (data_length / 19);
-            if (data_length % 19 > 0) {
+            mTotal_packets = data_length / PACKET_PAYLOAD_SIZE;
+            if (data_length % PACKET_PAYLOAD_SIZE > 0) {
                 mTotal_packets++;
             }
 
@@ -63,8 +77,27 @@ public class SerialProtocol {
             return false;
     }
 
+    /**
+     * Restarts packet generation so that the next packet is a RESUME header followed by the
+     * data packets from {@code packetIndex} onwards and the normal footer.  Used to continue a
+     * frame the eyewear already partially received before the link dropped.
+     *
+     * @param packetIndex index of the first data packet the eyewear has not confirmed.
+     */
+    public void resumeFrom(int packetIndex){
+        if(packetIndex < 0 || packetIndex > mTotal_packets) {
+            throw new IllegalArgumentException("Resume index " + packetIndex + " out of range");
+        }
+        mResumePacket = packetIndex;
+        mCurrentPacket = -1;
+    }
+
     byte[] getNextPacket(byte[] data){
         if(mCurrentPacket == -1){
+            if(mResumePacket > 0) {
+                mCurrentPacket = mResumePacket;
+                return getResumeHeader(data, mResumePacket);
+            }
             mCurrentPacket = 0;
             return getPacketHeader(data);
         }
@@ -74,23 +107,7 @@ public class SerialProtocol {
                 return null;
             }
 
-            int startIndex = mCurrentPacket * 19;
-            int endIndex = startIndex + 19;
-            int len = endIndex - startIndex;
-
-            if(endIndex >= mData_len) {
-                endIndex = (int) mData_len - 1;
-                len = endIndex - startIndex + 1;
-            }
-
-            ByteBuffer temp = ByteBuffer.allocate(20);
-            temp.put(0,(byte)len);
-            for(int x = 0; x < len; x++) {
-                temp.put(x+1, data[startIndex + x]);
-            }
-
-            mCurrentPacket++;
-            return temp.array();
+            return buildDataPacket(data, mCurrentPacket++);
 
         }
         else if (mCurrentPacket == mTotal_packets)
@@ -206,6 +223,9 @@ public class SerialProtocol {
             case IMAGE:
                 startPacket.put(2,(byte)0xA6);
                 break;
+            case BULK:
+                startPacket.put(2, TYPE_BULK);
+                break;
             default:
                 break;
         }
@@ -236,6 +256,9 @@ public class SerialProtocol {
             case IMAGE:
                 startPacket.put(2,(byte)0xA6);
                 break;
+            case BULK:
+                startPacket.put(2, TYPE_BULK);
+                break;
             default:
                 break;
         }
@@ -251,4 +274,152 @@ public class SerialProtocol {
         return startPacket.array();
 
     }
+
+    /**
+     * Builds the header announcing that the frame continues at a given data packet.  Layout is
+     * the normal header (type 0xA7, length, crc) followed by the resume packet index and the
+     * original frame type so the eyewear can match it against its partially received frame.
+     */
+    public byte[] getResumeHeader(byte[] data, int packetIndex){
+        // crc
+        Checksum checksum = new CRC32();
+        checksum.update(data, 0, data.length);
+        mData_crc = checksum.getValue();
+
+        return buildResumeHeader(mData_type, (int) mData_len, mData_crc, packetIndex);
+    }
+
+    /**
+     * Builds a RESUME header from an already known frame CRC, so resuming a large frame does not
+     * need another pass over its data.
+     */
+    public static byte[] buildResumeHeader(FrameTypes type, int dataLength, long crc, int packetIndex){
+        ByteBuffer resumePacket = ByteBuffer.allocate(PACKET_SIZE);
+        resumePacket.put(0, (byte) 15);
+        resumePacket.put(1, START_OF_FRAME);
+        resumePacket.put(2, TYPE_RESUME);
+
+        // data length and crc of the interrupted frame
+        resumePacket.putInt(3, dataLength);
+        resumePacket.putInt(7, (int) crc);
+
+        // first data packet being resent and type of the interrupted frame
+        resumePacket.putInt(11, packetIndex);
+        resumePacket.put(15, typeCode(type));
+
+        return resumePacket.array();
+    }
+
+    /**
+     * Builds data packet {@code packetIndex} of a frame: the payload length followed by up to
+     * PACKET_PAYLOAD_SIZE bytes of {@code data}.
+     */
+    static byte[] buildDataPacket(byte[] data, int packetIndex){
+        int startIndex = packetIndex * PACKET_PAYLOAD_SIZE;
+        int len = Math.min(PACKET_PAYLOAD_SIZE, data.length - startIndex);
+        byte[] packet = new byte[PACKET_SIZE];
+        packet[0] = (byte) len;
+        System.arraycopy(data, startIndex, packet, 1, len);
+        return packet;
+    }
+
+    /**
+     * Builds the header ({@link #START_OF_FRAME}) or footer ({@link #END_OF_FRAME}) of a STRING
+     * or IMAGE frame whose CRC is already known.  Same bytes as getPacketHeader and
+     * getPacketFooter, without going over the data again.
+     */
+    static byte[] buildFrameMarker(byte marker, FrameTypes type, int dataLength, long crc){
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        packet.put(0, (byte) 10);
+        packet.put(1, marker);
+        if (type == FrameTypes.STRING || type == FrameTypes.IMAGE)
+            packet.put(2, typeCode(type));
+        packet.putInt(3, dataLength);
+        packet.putInt(7, (int) crc);
+        return packet.array();
+    }
+
+    public static byte typeCode(FrameTypes type){
+        switch(type){
+            case STRING:
+                return TYPE_STRING;
+            case IMAGE:
+                return TYPE_IMAGE;
+            case ACKNOWLEDGE:
+                return TYPE_ACKNOWLEDGE;
+            case RESUME:
+                return TYPE_RESUME;
+            case BULK:
+                return TYPE_BULK;
+            default:
+                return 0;
+        }
+    }
+
+    public static FrameTypes fromTypeCode(byte code){
+        switch(code){
+            case TYPE_STRING:
+                return FrameTypes.STRING;
+            case TYPE_IMAGE:
+                return FrameTypes.IMAGE;
+            case TYPE_ACKNOWLEDGE:
+                return FrameTypes.ACKNOWLEDGE;
+            case TYPE_RESUME:
+                return FrameTypes.RESUME;
+            case TYPE_BULK:
+                return FrameTypes.BULK;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parses an acknowledge packet sent back by the eyewear.  The length field of an ACK carries
+     * the number of data packets of the current frame the eyewear has received in order.
+     *
+     * @return the confirmed packet count, or -1 if the packet is not an acknowledge.
+     */
+    public static int parseAcknowledge(byte[] packet){
+        if(packet == null || packet.length < 7)
+            return -1;
+        if(packet[1] != START_OF_FRAME || packet[2] != TYPE_ACKNOWLEDGE)
+            return -1;
+        return ByteBuffer.wrap(packet).getInt(3);
+    }
+
+    public static byte[] buildAcknowledge(int confirmedPackets){
+        ByteBuffer ackPacket = ByteBuffer.allocate(PACKET_SIZE);
+        ackPacket.put(0, (byte) 6);
+        ackPacket.put(1, START_OF_FRAME);
+        ackPacket.put(2, TYPE_ACKNOWLEDGE);
+        ackPacket.putInt(3, confirmedPackets);
+        return ackPacket.array();
+    }
+
+    /**
+     * Parses a block acknowledge of a bulk transfer: [12, 0xAB, 0xA9, blob id, block sequence].
+     *
+     * @return the acknowledged block's sequence number, or -1 if the packet is not a block
+     *         acknowledge for {@code blobId}.
+     */
+    public static int parseBlockAcknowledge(byte[] packet, int blobId){
+        if(packet == null || packet.length < 11)
+            return -1;
+        if(packet[1] != START_OF_FRAME || packet[2] != TYPE_BLOCK_ACKNOWLEDGE)
+            return -1;
+        ByteBuffer ack = ByteBuffer.wrap(packet);
+        if(ack.getInt(3) != blobId)
+            return -1;
+        return ack.getInt(7);
+    }
+
+    public static byte[] buildBlockAcknowledge(int blobId, int sequence){
+        ByteBuffer ackPacket = ByteBuffer.allocate(PACKET_SIZE);
+        ackPacket.put(0, (byte) 12);
+        ackPacket.put(1, START_OF_FRAME);
+        ackPacket.put(2, TYPE_BLOCK_ACKNOWLEDGE);
+        ackPacket.putInt(3, blobId);
+        ackPacket.putInt(7, sequence);
+        return ackPacket.array();
+    }
 }
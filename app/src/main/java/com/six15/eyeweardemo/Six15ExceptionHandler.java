@@ -3,14 +3,28 @@ package com.six15.eyeweardemo;
 import android.app.Activity;
 import android.content.Context;
 
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 /**
  * Created by George on 9/19/2015.
+ *
+ * Crash reports are streamed straight to six15.trace through a buffered writer and capped at
+ * MAX_REPORT_CHARS.  The previous MAX_REPORTS - 1 reports are kept as six15.trace.1,
+ * six15.trace.2, ... newest first.
  */
 public class Six15ExceptionHandler implements Thread.UncaughtExceptionHandler{
 
+    public static final String TRACE_FILE = "six15.trace";
+    public static final int MAX_REPORTS = 3;
+    public static final int MAX_REPORT_CHARS = 64 * 1024;
+
     private Thread.UncaughtExceptionHandler defaultUEH;
     private Activity app = null;
 
@@ -21,38 +35,128 @@ public class Six15ExceptionHandler implements Thread.UncaughtExceptionHandler{
 
     @Override
     public void uncaughtException(Thread thread, Throwable throwable) {
-        StackTraceElement[] arr = throwable.getStackTrace();
-        String report = throwable.toString()+"\n\n";
-        report += "--------- Stack trace ---------\n\n";
-        for (int i=0; i<arr.length; i++)
-        {
-            report += "    "+arr[i].toString()+"\n";
-        }
-        report += "-------------------------------\n\n";
-
-        // If the exception was thrown in a background thread inside
-        // AsyncTask, then the actual exception can be found with getCause
-        report += "--------- Cause ---------\n\n";
-        Throwable cause = throwable.getCause();
-        if(cause != null) {
-            report += cause.toString() + "\n\n";
-            arr = cause.getStackTrace();
-            for (int i=0; i<arr.length; i++)
-            {
-                report += "    "+arr[i].toString()+"\n";
-            }
-        }
-        report += "-------------------------------\n\n";
-
         try {
-            FileOutputStream trace = app.openFileOutput(
-                    "six15.trace", Context.MODE_PRIVATE);
-            trace.write(report.getBytes());
-            trace.close();
+            rotateReports(app);
+            ReportWriter report = new ReportWriter(new BufferedWriter(new OutputStreamWriter(
+                    app.openFileOutput(TRACE_FILE, Context.MODE_PRIVATE))), MAX_REPORT_CHARS);
+            try {
+                report.append(throwable.toString()).append("\n\n");
+                report.append("--------- Stack trace ---------\n\n");
+                appendFrames(report, throwable.getStackTrace());
+                report.append("-------------------------------\n\n");
+
+                // If the exception was thrown in a background thread inside
+                // AsyncTask, then the actual exception can be found with getCause
+                report.append("--------- Cause ---------\n\n");
+                Throwable cause = throwable.getCause();
+                if(cause != null) {
+                    report.append(cause.toString()).append("\n\n");
+                    appendFrames(report, cause.getStackTrace());
+                }
+                report.append("-------------------------------\n\n");
+            } finally {
+                report.close();
+            }
         } catch(IOException ioe) {
 // ...
         }
 
         defaultUEH.uncaughtException(thread, throwable);
     }
+
+    private static void appendFrames(ReportWriter report, StackTraceElement[] arr) throws IOException {
+        for (int i=0; i<arr.length && !report.isFull(); i++)
+        {
+            report.append("    ").append(arr[i].toString()).append("\n");
+        }
+    }
+
+    // Shifts six15.trace -> six15.trace.1 -> six15.trace.2, dropping the oldest report.
+    private static void rotateReports(Context context) {
+        File oldest = context.getFileStreamPath(reportName(MAX_REPORTS - 1));
+        if (oldest.exists())
+            oldest.delete();
+        for (int i = MAX_REPORTS - 2; i >= 0; i--) {
+            File report = context.getFileStreamPath(reportName(i));
+            if (report.exists())
+                report.renameTo(context.getFileStreamPath(reportName(i + 1)));
+        }
+    }
+
+    private static String reportName(int index) {
+        return index == 0 ? TRACE_FILE : TRACE_FILE + "." + index;
+    }
+
+    /**
+     * Reads the stored crash reports, newest first, up to {@code maxChars} characters in total.
+     * This does file I/O; call it off the main thread.
+     *
+     * @return the reports, or null if there are none.
+     */
+    public static String readReports(Context context, int maxChars) {
+        StringBuilder trace = null;
+        for (int i = 0; i < MAX_REPORTS; i++) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        context.openFileInput(reportName(i))));
+                try {
+                    if (trace == null)
+                        trace = new StringBuilder();
+                    char[] buffer = new char[4096];
+                    int read;
+                    while (trace.length() < maxChars
+                            && (read = reader.read(buffer, 0, Math.min(buffer.length, maxChars - trace.length()))) > 0) {
+                        trace.append(buffer, 0, read);
+                    }
+                    trace.append("\n");
+                } finally {
+                    reader.close();
+                }
+            } catch (FileNotFoundException fnfe) {
+                // no report in this slot
+            } catch (IOException ioe) {
+                // keep whatever was read
+            }
+        }
+        return trace == null ? null : trace.toString();
+    }
+
+    public static void deleteReports(Context context) {
+        for (int i = 0; i < MAX_REPORTS; i++) {
+            context.deleteFile(reportName(i));
+        }
+    }
+
+    // Writer that stops accepting text once the report reaches its size cap.
+    private static class ReportWriter {
+        private final Writer mWriter;
+        private int mRemaining;
+
+        ReportWriter(Writer writer, int maxChars) {
+            mWriter = writer;
+            mRemaining = maxChars;
+        }
+
+        ReportWriter append(String text) throws IOException {
+            if (mRemaining <= 0)
+                return this;
+            if (text.length() > mRemaining) {
+                mWriter.write(text, 0, mRemaining);
+                mWriter.write("\n... report truncated ...\n");
+                mRemaining = 0;
+            } else {
+                mWriter.write(text);
+                mRemaining -= text.length();
+            }
+            return this;
+        }
+
+        boolean isFull() {
+            return mRemaining <= 0;
+        }
+
+        void close() throws IOException {
+            mWriter.close();
+        }
+    }
 }
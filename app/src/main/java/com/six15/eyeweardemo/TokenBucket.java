@@ -0,0 +1,104 @@
+package com.six15.eyeweardemo;
+
+/**
+ * Token bucket used to pace packet writes.  Tokens accrue at {@code rate} per second up to
+ * {@code burst}; each packet takes one.  After an idle period up to {@code burst} packets go out
+ * back to back, after that the writer settles at the rate, so the link runs steadily just below
+ * where the stack starts rejecting writes instead of alternating bursts and stalls.  Time comes
+ * from a monotonic clock, {@link System#nanoTime()} by default.
+ */
+public class TokenBucket {
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final Clock mClock;
+    private double mRate;
+    private double mBurst;
+    private double mTokens;
+    private long mLastRefill;
+
+    public TokenBucket(double rate, int burst) {
+        this(rate, burst, SYSTEM_CLOCK);
+    }
+
+    TokenBucket(double rate, int burst, Clock clock) {
+        if (rate <= 0 || burst < 1)
+            throw new IllegalArgumentException("rate and burst must be positive");
+        mClock = clock;
+        mRate = rate;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefill = clock.nanoTime();
+    }
+
+    /**
+     * Changes the rate; tokens earned so far are kept.
+     */
+    public synchronized void setRate(double rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("rate must be positive");
+        if (rate == mRate)
+            return;
+        refill(mClock.nanoTime());
+        mRate = rate;
+    }
+
+    public synchronized void setBurst(int burst) {
+        if (burst < 1)
+            throw new IllegalArgumentException("burst must be positive");
+        refill(mClock.nanoTime());
+        mBurst = burst;
+        mTokens = Math.min(mTokens, burst);
+    }
+
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    public synchronized int getBurst() {
+        return (int) mBurst;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the nanoseconds until one will be.
+     */
+    public synchronized long tryAcquire() {
+        refill(mClock.nanoTime());
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - mTokens) * NANOS_PER_SECOND / mRate));
+    }
+
+    /**
+     * Waits until a token is available and takes it.
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        while ((wait = tryAcquire()) > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    private void refill(long now) {
+        long elapsed = now - mLastRefill;
+        if (elapsed > 0) {
+            mTokens = Math.min(mBurst, mTokens + elapsed * mRate / NANOS_PER_SECOND);
+            mLastRefill = now;
+        }
+    }
+}
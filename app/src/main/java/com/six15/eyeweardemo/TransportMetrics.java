@@ -0,0 +1,88 @@
+package com.six15.eyeweardemo;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what went wrong on one connection's transport: GATT operations the stack refused,
+ * callbacks that never arrived, retries, operations given up on, GATT resets done to get a
+ * stalled link moving again, and frames dropped because they could no longer meet their
+ * deadline.  Counters are per operation type and updated without locks from
+ * the GATT timer, binder and writer threads.
+ */
+public class TransportMetrics {
+
+    private static final int OP_TYPES = GattOperationQueue.OP_CONNECTION_PRIORITY + 1;
+
+    private final AtomicLongArray mRefused = new AtomicLongArray(OP_TYPES);
+    private final AtomicLongArray mTimedOut = new AtomicLongArray(OP_TYPES);
+    private final AtomicLongArray mRetried = new AtomicLongArray(OP_TYPES);
+    private final AtomicLongArray mFailed = new AtomicLongArray(OP_TYPES);
+    private final AtomicLong mGattResets = new AtomicLong();
+    private final AtomicLong mStaleFrames = new AtomicLong();
+
+    void onRefused(int opType) {
+        mRefused.incrementAndGet(opType);
+    }
+
+    void onTimedOut(int opType) {
+        mTimedOut.incrementAndGet(opType);
+    }
+
+    void onRetry(int opType) {
+        mRetried.incrementAndGet(opType);
+    }
+
+    void onFailed(int opType) {
+        mFailed.incrementAndGet(opType);
+    }
+
+    void onGattReset() {
+        mGattResets.incrementAndGet();
+    }
+
+    void onStaleFrameDropped() {
+        mStaleFrames.incrementAndGet();
+    }
+
+    public long getRefusedCount(int opType) {
+        return mRefused.get(opType);
+    }
+
+    public long getTimedOutCount(int opType) {
+        return mTimedOut.get(opType);
+    }
+
+    public long getRetryCount(int opType) {
+        return mRetried.get(opType);
+    }
+
+    public long getFailedCount(int opType) {
+        return mFailed.get(opType);
+    }
+
+    public long getGattResetCount() {
+        return mGattResets.get();
+    }
+
+    public long getStaleFrameCount() {
+        return mStaleFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        int write = GattOperationQueue.OP_WRITE;
+        long otherFailures = 0;
+        for (int type = 0; type < OP_TYPES; type++) {
+            if (type != write)
+                otherFailures += mFailed.get(type);
+        }
+        return String.format(Locale.US,
+                "writes: %d refused, %d timed out, %d retried, %d failed; other ops failed: %d; GATT resets: %d;"
+                        + " stale frames dropped: %d",
+                getRefusedCount(write), getTimedOutCount(write), getRetryCount(write),
+                getFailedCount(write), otherFailures, getGattResetCount(),
+                getStaleFrameCount());
+    }
+}
@@ -0,0 +1,86 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementParserTest {
+
+    private static final UUID SIX15_SERVICE = Six15GattAttributes.UUID_SIX15_BLE_SERVICE;
+    private static final UUID HEART_RATE_SERVICE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM_SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    // little endian bytes of a 128 bit UUID, as advertisements carry them
+    private static byte[] uuid128(UUID uuid) {
+        byte[] bytes = new byte[16];
+        for (int b = 0; b < 8; b++) {
+            bytes[b] = (byte) (uuid.getLeastSignificantBits() >>> (8 * b));
+            bytes[8 + b] = (byte) (uuid.getMostSignificantBits() >>> (8 * b));
+        }
+        return bytes;
+    }
+
+    private static byte[] record(byte[]... structures) {
+        int length = 0;
+        for (byte[] structure : structures) {
+            length += structure.length;
+        }
+        // scan records come padded with zeros to 62 bytes
+        byte[] record = new byte[Math.max(62, length)];
+        int pos = 0;
+        for (byte[] structure : structures) {
+            System.arraycopy(structure, 0, record, pos, structure.length);
+            pos += structure.length;
+        }
+        return record;
+    }
+
+    private static byte[] structure(int type, byte[] data) {
+        byte[] structure = new byte[data.length + 2];
+        structure[0] = (byte) (data.length + 1);
+        structure[1] = (byte) type;
+        System.arraycopy(data, 0, structure, 2, data.length);
+        return structure;
+    }
+
+    @Test
+    public void findsShortAndLongServiceUuids() throws Exception {
+        byte[] flags = structure(0x01, new byte[] { 0x06 });
+        byte[] shortList = structure(0x03, new byte[] { 0x0F, 0x18, 0x0D, 0x18 });
+        byte[] record = record(flags, shortList);
+        assertTrue(BluetoothLeService.advertisesService(record, HEART_RATE_SERVICE));
+        assertFalse(BluetoothLeService.advertisesService(record, CUSTOM_SERVICE));
+
+        byte[] longList = structure(0x07, uuid128(CUSTOM_SERVICE));
+        record = record(flags, longList);
+        assertTrue(BluetoothLeService.advertisesService(record, CUSTOM_SERVICE));
+        // incomplete list
+        record = record(structure(0x06, uuid128(CUSTOM_SERVICE)));
+        assertTrue(BluetoothLeService.advertisesService(record, CUSTOM_SERVICE));
+        assertFalse(BluetoothLeService.advertisesService(record, HEART_RATE_SERVICE));
+
+        // the Six15 service in whichever form its base allows
+        boolean isShort = (SIX15_SERVICE.getMostSignificantBits() & 0xFFFF0000FFFFFFFFL) == 0x1000L;
+        byte[] six15 = isShort
+                ? structure(0x03, new byte[] { (byte) (SIX15_SERVICE.getMostSignificantBits() >>> 32),
+                        (byte) (SIX15_SERVICE.getMostSignificantBits() >>> 40) })
+                : structure(0x07, uuid128(SIX15_SERVICE));
+        assertTrue(BluetoothLeService.advertisesService(record(flags, six15), SIX15_SERVICE));
+    }
+
+    @Test
+    public void malformedRecordsAreRejected() throws Exception {
+        assertFalse(BluetoothLeService.advertisesService(null, HEART_RATE_SERVICE));
+        assertFalse(BluetoothLeService.advertisesService(new byte[0], HEART_RATE_SERVICE));
+        // length running past the end of the record
+        assertFalse(BluetoothLeService.advertisesService(new byte[] { 0x05, 0x03, 0x0D, 0x18 }, HEART_RATE_SERVICE));
+        // a 16 bit UUID other than the one asked for is not a match for a long UUID
+        byte[] shortList = structure(0x03, new byte[] { 0x0D, 0x18 });
+        assertFalse(BluetoothLeService.advertisesService(record(shortList), CUSTOM_SERVICE));
+        // a zero length structure ends the record
+        byte[] hidden = record(new byte[] { 0x00 }, shortList);
+        assertFalse(BluetoothLeService.advertisesService(hidden, HEART_RATE_SERVICE));
+    }
+}
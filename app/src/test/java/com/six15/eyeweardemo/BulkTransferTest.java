@@ -0,0 +1,115 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BulkTransferTest {
+
+    private final List<byte[]> notifications = new ArrayList<>();
+    private byte[] blob;
+
+    private final EyewearSimulator simulator = new EyewearSimulator(new EyewearSimulator.Listener() {
+        @Override
+        public void onNotification(byte[] packet) {
+            notifications.add(packet);
+        }
+
+        @Override
+        public void onFrameReceived(SerialProtocol.FrameTypes type, byte[] data) {
+            if (type == SerialProtocol.FrameTypes.BULK)
+                blob = data;
+        }
+    }, 0);
+
+    private void send(EncodedFrame frame) {
+        for (int i = 0; i < frame.getPacketCount(); i++) {
+            simulator.receive(frame.getPacket(i));
+        }
+    }
+
+    @Test
+    public void blobLargerThanFrameLimitArrivesIntact() throws Exception {
+        byte[] data = new byte[SerialProtocol.MAX_DATA_LENGTH + 100000];
+        new Random(1).nextBytes(data);
+        BulkTransfer transfer = new BulkTransfer(data, 64 * 1024, 4);
+
+        long now = 0;
+        while (!transfer.isComplete()) {
+            for (int block : transfer.nextBlocks(now)) {
+                send(transfer.encodeBlock(block));
+                transfer.onBlockSent(block, now);
+            }
+            for (byte[] ack : notifications) {
+                int block = transfer.parseAcknowledge(ack);
+                if (block >= 0)
+                    transfer.onBlockAcknowledged(block);
+            }
+            notifications.clear();
+        }
+        assertArrayEquals(data, blob);
+        assertEquals(0, transfer.getResendCount());
+    }
+
+    @Test
+    public void lostBlocksAreResentAndOutOfOrderAcksAccepted() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(2).nextBytes(data);
+        BulkTransfer transfer = new BulkTransfer(data, 1000, 4);
+        Random random = new Random(3);
+
+        long now = 0;
+        int rounds = 0;
+        while (!transfer.isComplete() && rounds++ < 100) {
+            List<Integer> blocks = transfer.nextBlocks(now);
+            Collections.shuffle(blocks, random);
+            for (int block : blocks) {
+                // drop about a third of the blocks on the way
+                if (random.nextInt(3) != 0)
+                    send(transfer.encodeBlock(block));
+                transfer.onBlockSent(block, now);
+            }
+            Collections.shuffle(notifications, random);
+            for (byte[] ack : notifications) {
+                int block = transfer.parseAcknowledge(ack);
+                if (block >= 0)
+                    transfer.onBlockAcknowledged(block);
+            }
+            notifications.clear();
+            now += BulkTransfer.RESEND_TIMEOUT_NANOS;
+        }
+        assertTrue(transfer.isComplete());
+        assertTrue(transfer.getResendCount() > 0);
+        assertArrayEquals(data, blob);
+    }
+
+    @Test
+    public void resendTimerStartsWhenTheBlockGoesOut() throws Exception {
+        BulkTransfer transfer = new BulkTransfer(new byte[4000], 1000, 2);
+        long now = 0;
+        assertEquals(Arrays.asList(0, 1), transfer.nextBlocks(now));
+
+        // stuck behind other frames for longer than the resend timeout: nothing is overdue
+        now += 2 * BulkTransfer.RESEND_TIMEOUT_NANOS;
+        assertTrue(transfer.nextBlocks(now).isEmpty());
+
+        transfer.onBlockSent(0, now);
+        assertTrue(transfer.nextBlocks(now + BulkTransfer.RESEND_TIMEOUT_NANOS - 1).isEmpty());
+        now += BulkTransfer.RESEND_TIMEOUT_NANOS;
+        assertEquals(Arrays.asList(0), transfer.nextBlocks(now));
+        // queued again, so not handed out a second time before it goes out
+        assertTrue(transfer.nextBlocks(now + 2 * BulkTransfer.RESEND_TIMEOUT_NANOS).isEmpty());
+        assertEquals(1, transfer.getResendCount());
+
+        FrameTransfer frame = transfer.createBlockTransfer(1);
+        assertSame(transfer, frame.getBulkTransfer());
+        assertEquals(1, frame.getBulkBlock());
+        assertEquals(SerialProtocol.FrameTypes.BULK, frame.getType());
+    }
+}
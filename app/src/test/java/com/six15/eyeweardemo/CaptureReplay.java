@@ -0,0 +1,130 @@
+package com.six15.eyeweardemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link PacketCapture} file: TX packets are fed to an {@link EyewearSimulator} and RX
+ * packets through the phone side acknowledge parsing, at the recorded pace, faster, or as fast
+ * as possible.  Comparing what the simulator acknowledges with what the glass actually sent
+ * back shows where a field session went wrong, and a capture plus the expected result makes a
+ * regression test.
+ *
+ * <p>Run {@link #main} with a capture file and an optional speed factor.
+ */
+public class CaptureReplay {
+
+    /**
+     * Where the replay gets the time and waits, so tests do not depend on the wall clock.
+     */
+    interface Clock {
+        long nanoTime();
+
+        void parkNanos(long nanos);
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void parkNanos(long nanos) {
+            LockSupport.parkNanos(nanos);
+        }
+    };
+
+    public static class Result {
+        int txPackets;
+        int rxPackets;
+        int framesReceived;
+        int framesDropped;
+        // acknowledges in the capture and the ones the simulator produced for the same packets
+        int capturedAcknowledges;
+        int simulatedAcknowledges;
+        long recordedNanos;
+        long replayNanos;
+        // how far behind the recorded timing the replay fell at worst
+        long maxLagNanos;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d TX %d RX packets, %d frames received %d dropped, acknowledges %d captured"
+                            + " %d simulated, %.1f ms recorded, replayed in %.1f ms (max lag %.2f ms)",
+                    txPackets, rxPackets, framesReceived, framesDropped, capturedAcknowledges,
+                    simulatedAcknowledges, recordedNanos / 1e6, replayNanos / 1e6, maxLagNanos / 1e6);
+        }
+    }
+
+    /**
+     * @param speed 1 for the recorded pace, 10 for ten times faster, 0 for no waiting at all.
+     * @param ackInterval passed to the simulator, to match the firmware that was captured.
+     */
+    public static Result replay(File file, double speed, int ackInterval) throws IOException {
+        return replay(file, speed, ackInterval, SYSTEM_CLOCK);
+    }
+
+    static Result replay(File file, double speed, int ackInterval, Clock clock) throws IOException {
+        final Result result = new Result();
+        EyewearSimulator simulator = new EyewearSimulator(new EyewearSimulator.Listener() {
+            @Override
+            public void onNotification(byte[] packet) {
+                if (SerialProtocol.parseAcknowledge(packet) >= 0)
+                    result.simulatedAcknowledges++;
+            }
+
+            @Override
+            public void onFrameReceived(SerialProtocol.FrameTypes type, byte[] data) {
+            }
+        }, ackInterval);
+
+        PacketCapture.Reader reader = new PacketCapture.Reader(file);
+        try {
+            long start = clock.nanoTime();
+            long first = -1;
+            PacketCapture.Record record;
+            while ((record = reader.next()) != null) {
+                if (first < 0)
+                    first = record.timestampNanos;
+                long offset = record.timestampNanos - first;
+                if (speed > 0) {
+                    long due = start + (long) (offset / speed);
+                    long wait;
+                    while ((wait = due - clock.nanoTime()) > 0) {
+                        clock.parkNanos(wait);
+                    }
+                    result.maxLagNanos = Math.max(result.maxLagNanos, -wait);
+                }
+                if (record.direction == PacketCapture.DIRECTION_TX) {
+                    result.txPackets++;
+                    simulator.receive(record.value);
+                } else {
+                    result.rxPackets++;
+                    if (SerialProtocol.parseAcknowledge(record.value) >= 0)
+                        result.capturedAcknowledges++;
+                }
+                result.recordedNanos = offset;
+            }
+            result.replayNanos = clock.nanoTime() - start;
+        } finally {
+            reader.close();
+        }
+        result.framesReceived = simulator.getFramesReceived();
+        result.framesDropped = simulator.getFramesDropped();
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: CaptureReplay <capture file> [speed, 0 = no waiting] [ack interval]");
+            return;
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int ackInterval = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        System.out.println(replay(new File(args[0]), speed, ackInterval));
+    }
+}
@@ -0,0 +1,83 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.six15.eyeweardemo.ConnectionStateMachine.*;
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+
+    @Test
+    public void followsTransitionTableAndNotifies() throws Exception {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        final List<String> changes = new ArrayList<>();
+        machine.addListener(new Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                changes.add(name(from) + "->" + name(to));
+            }
+        });
+
+        assertFalse(machine.transition(STATE_DISCONNECTED, STATE_READY));
+        assertTrue(machine.transition(STATE_DISCONNECTED, STATE_CONNECTING));
+        // stale expectation of the current state
+        assertFalse(machine.transition(STATE_DISCONNECTED, STATE_CONNECTING));
+        assertEquals(STATE_CONNECTING, machine.moveTo(STATE_CONNECTED));
+        assertTrue(machine.isConnected());
+        assertFalse(machine.isReady());
+        assertTrue(machine.transition(STATE_CONNECTED, STATE_READY));
+        assertTrue(machine.isReady());
+        // the link dropping is accepted from any state, and only reported once
+        assertEquals(STATE_READY, machine.moveTo(STATE_DISCONNECTED));
+        assertEquals(STATE_DISCONNECTED, machine.moveTo(STATE_DISCONNECTED));
+        assertEquals(-1, machine.moveTo(STATE_DISCONNECTING));
+
+        assertEquals("[DISCONNECTED->CONNECTING, CONNECTING->CONNECTED, CONNECTED->READY, READY->DISCONNECTED]",
+                changes.toString());
+    }
+
+    @Test
+    public void onlyOneOfRacingConnectsWins() throws Exception {
+        final ConnectionStateMachine machine = new ConnectionStateMachine();
+        final AtomicInteger wins = new AtomicInteger();
+        final AtomicInteger notified = new AtomicInteger();
+        machine.addListener(new Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                notified.incrementAndGet();
+            }
+        });
+
+        for (int round = 0; round < 100; round++) {
+            final CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (machine.transition(STATE_DISCONNECTED, STATE_CONNECTING))
+                            wins.incrementAndGet();
+                    }
+                });
+                threads[i].start();
+            }
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(round + 1, wins.get());
+            machine.moveTo(STATE_DISCONNECTED);
+        }
+        assertEquals(200, notified.get());
+    }
+}
@@ -0,0 +1,178 @@
+package com.six15.eyeweardemo;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DeviceProfileStoreTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    // Just enough SharedPreferences for the store: strings, kept in memory.
+    private static class MemoryPreferences implements SharedPreferences {
+        final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value instanceof String ? (String) value : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    values.remove(key);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    values.clear();
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+
+    @Test
+    public void negotiatedLinkSettingsSurviveReload() throws Exception {
+        MemoryPreferences preferences = new MemoryPreferences();
+        DeviceProfileStore store = new DeviceProfileStore(preferences);
+        assertNull(store.getProfile(ADDRESS));
+
+        // the first connection's settings arrive before the device is saved as paired
+        store.updateConnectionPriority(ADDRESS, 1);
+        store.updateMtu(ADDRESS, 185);
+        store.savePairedDevice(ADDRESS, "SIX15.EYE");
+
+        DeviceProfile profile = new DeviceProfileStore(preferences).getProfile(ADDRESS);
+        assertNotNull(profile);
+        assertEquals(185, profile.getMtu());
+        assertEquals(1, profile.getConnectionPriority());
+        assertEquals("SIX15.EYE", profile.getName());
+        assertTrue(profile.getPairedTime() > 0);
+    }
+
+    @Test
+    public void defaultsUntilSomethingIsNegotiated() throws Exception {
+        MemoryPreferences preferences = new MemoryPreferences();
+        new DeviceProfileStore(preferences).savePairedDevice(ADDRESS, null);
+
+        DeviceProfile profile = new DeviceProfileStore(preferences).getProfile(ADDRESS);
+        assertEquals(DeviceProfile.DEFAULT_MTU, profile.getMtu());
+        assertEquals(-1, profile.getConnectionPriority());
+    }
+
+    @Test
+    public void connectingDoesNotPairAndForgettingSticks() throws Exception {
+        MemoryPreferences preferences = new MemoryPreferences();
+        DeviceProfileStore store = new DeviceProfileStore(preferences);
+        store.updateMtu(ADDRESS, 185);
+        assertFalse(store.isPaired(ADDRESS));
+        assertNull(store.getPrimaryAddress());
+        assertTrue(store.getPairedDevices().isEmpty());
+
+        store.savePairedDevice(ADDRESS, null);
+        assertEquals(ADDRESS, store.getPrimaryAddress());
+        store.removePairedDevice(ADDRESS);
+        // the next connection's settings do not bring the pairing back
+        store.updateMtu(ADDRESS, 247);
+        store.updateConnectionPriority(ADDRESS, 1);
+
+        store = new DeviceProfileStore(preferences);
+        assertFalse(store.isPaired(ADDRESS));
+        assertNull(store.getPrimaryAddress());
+        assertEquals(247, store.getProfile(ADDRESS).getMtu());
+    }
+}
@@ -0,0 +1,208 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EyewearSimulatorTest {
+
+    private final List<byte[]> notifications = new ArrayList<>();
+    private final List<byte[]> frames = new ArrayList<>();
+
+    private final EyewearSimulator simulator = new EyewearSimulator(new EyewearSimulator.Listener() {
+        @Override
+        public void onNotification(byte[] packet) {
+            notifications.add(packet);
+        }
+
+        @Override
+        public void onFrameReceived(SerialProtocol.FrameTypes type, byte[] data) {
+            frames.add(data);
+        }
+    }, 8);
+
+    private static byte[] image(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void receivesCompleteFrame() throws Exception {
+        byte[] data = image(1000);
+        for (byte[] packet : new FrameTransfer(SerialProtocol.FrameTypes.IMAGE, data).buildPackets()) {
+            simulator.receive(packet);
+        }
+        assertEquals(1, frames.size());
+        assertArrayEquals(data, frames.get(0));
+    }
+
+    @Test
+    public void resumesFromLastAcknowledgedPacket() throws Exception {
+        byte[] data = image(1000);
+        FrameTransfer transfer = new FrameTransfer(SerialProtocol.FrameTypes.IMAGE, data);
+        List<byte[]> packets = transfer.buildPackets();
+
+        // link drops after the header and 30 data packets
+        for (int i = 0; i < 31; i++) {
+            simulator.receive(packets.get(i));
+            transfer.packetSent();
+        }
+        simulator.linkLost();
+        for (byte[] ack : notifications) {
+            transfer.setConfirmedPackets(SerialProtocol.parseAcknowledge(ack));
+        }
+        assertEquals(24, transfer.getConfirmedPackets());
+        assertTrue(transfer.isResumable());
+
+        List<byte[]> resumed = transfer.buildResumePackets();
+        assertEquals(packets.size() - 24, resumed.size());
+        for (byte[] packet : resumed) {
+            simulator.receive(packet);
+        }
+        assertEquals(1, simulator.getFramesResumed());
+        assertEquals(1, frames.size());
+        assertArrayEquals(data, frames.get(0));
+    }
+
+    @Test
+    public void unknownResumeRestartsFrame() throws Exception {
+        FrameTransfer transfer = new FrameTransfer(SerialProtocol.FrameTypes.IMAGE, image(500));
+        transfer.buildPackets();
+        for (int i = 0; i < 10; i++) {
+            transfer.packetSent();
+        }
+        transfer.setConfirmedPackets(8);
+
+        simulator.receive(transfer.buildResumePackets().get(0));
+        assertEquals(0, SerialProtocol.parseAcknowledge(notifications.get(0)));
+        assertEquals(1, simulator.getFramesDropped());
+    }
+
+    // Feeds a writer's packets to whichever simulator is current and its acknowledges back to
+    // the writer; writes stop completing after mStallAfter packets, as when the link drops.
+    private static class LoopbackLink implements FrameWriter.Link {
+        volatile FrameWriter writer;
+        volatile EyewearSimulator glass;
+        volatile int stallAfter = Integer.MAX_VALUE;
+        // the stalled write stops the writer from the writer thread, as a GATT reset does
+        volatile boolean stopOnStall = false;
+        volatile Thread writerThread;
+        int written = 0;
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(1);
+        volatile byte[] data;
+
+        EyewearSimulator newGlass() {
+            glass = new EyewearSimulator(new EyewearSimulator.Listener() {
+                @Override
+                public void onNotification(byte[] packet) {
+                    writer.onAcknowledge(SerialProtocol.parseAcknowledge(packet));
+                }
+
+                @Override
+                public void onFrameReceived(SerialProtocol.FrameTypes type, byte[] frame) {
+                    data = frame;
+                    received.countDown();
+                }
+            }, 8);
+            return glass;
+        }
+
+        @Override
+        public void writePacket(byte[] packet, FrameTransfer transfer) {
+            writerThread = Thread.currentThread();
+            if (++written > stallAfter) {
+                if (stopOnStall)
+                    writer.stop();
+                stalled.countDown();
+                return;
+            }
+            glass.receive(packet);
+            writer.onWriteDone();
+        }
+
+        @Override
+        public void onLastPacket(FrameTransfer transfer) {
+        }
+
+        @Override
+        public void onFrameDropped(FrameTransfer transfer) {
+        }
+    }
+
+    @Test
+    public void rejectedResumeIsSentAgainFromHeader() throws Exception {
+        LoopbackLink link = new LoopbackLink();
+        FrameQueue queue = new FrameQueue();
+        FrameWriter writer = new FrameWriter("test writer", queue, new LinkAutotuner(), link);
+        link.writer = writer;
+        writer.setPacing(100000, 100);
+        link.newGlass();
+        link.stallAfter = 31;
+
+        byte[] data = image(1000);
+        FrameTransfer transfer = new FrameTransfer(SerialProtocol.FrameTypes.IMAGE, data);
+        queue.offer(transfer);
+        writer.start();
+        try {
+            assertTrue(link.stalled.await(5, TimeUnit.SECONDS));
+            writer.stop();
+            assertTrue(transfer.isResumable());
+
+            // the eyewear restarted meanwhile and has nothing to resume
+            EyewearSimulator glass = link.newGlass();
+            link.stallAfter = Integer.MAX_VALUE;
+            writer.start();
+            assertTrue(link.received.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(data, link.data);
+            assertEquals(1, glass.getFramesReceived());
+            assertEquals(0, glass.getFramesResumed());
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void restartWaitsForTheStoppedWriter() throws Exception {
+        LoopbackLink link = new LoopbackLink();
+        FrameQueue queue = new FrameQueue();
+        FrameWriter writer = new FrameWriter("test writer", queue, new LinkAutotuner(), link);
+        link.writer = writer;
+        writer.setPacing(100000, 100);
+        link.newGlass();
+        link.stallAfter = 31;
+        link.stopOnStall = true;
+
+        byte[] data = image(1000);
+        queue.offer(new FrameTransfer(SerialProtocol.FrameTypes.IMAGE, data));
+        writer.start();
+        try {
+            assertTrue(link.stalled.await(5, TimeUnit.SECONDS));
+            Thread first = link.writerThread;
+            assertFalse(writer.isRunning());
+
+            link.glass.linkLost();
+            link.stallAfter = Integer.MAX_VALUE;
+            writer.start();
+            // the thread that stopped itself had exited before the new one took over
+            assertFalse(first.isAlive());
+            assertTrue(link.received.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(data, link.data);
+            assertEquals(1, link.glass.getFramesResumed());
+
+            Thread second = link.writerThread;
+            assertNotSame(first, second);
+            writer.stop();
+            assertFalse(second.isAlive());
+        } finally {
+            writer.stop();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameQueueTest {
+
+    @Test
+    public void framesComeOutInOrder() throws Exception {
+        FrameQueue queue = new FrameQueue();
+        assertNull(queue.poll());
+        FrameTransfer first = new FrameTransfer(SerialProtocol.FrameTypes.STRING, "one".getBytes());
+        FrameTransfer second = new FrameTransfer(SerialProtocol.FrameTypes.STRING, "two".getBytes());
+        queue.offer(first);
+        queue.offer(second);
+        assertEquals(2, queue.size());
+        assertSame(first, queue.take());
+        assertSame(second, queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void concurrentProducersLoseNothing() throws Exception {
+        final FrameQueue queue = new FrameQueue();
+        final int producers = 4;
+        final int perProducer = 5000;
+        final EncodedFrame frame = EncodedFrame.encode(SerialProtocol.FrameTypes.STRING, "x".getBytes());
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        FrameTransfer transfer = new FrameTransfer(frame);
+                        transfer.setJournalOffset(id * perProducer + i);
+                        queue.offer(transfer);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        for (int i = 0; i < producers * perProducer; i++) {
+            long tag = queue.take().getJournalOffset();
+            int id = (int) (tag / perProducer);
+            // each producer's frames keep their order
+            assertTrue(tag > last[id]);
+            last[id] = tag;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,113 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameSchedulerTest {
+
+    private static FrameTransfer frame(String text, long deadline) {
+        FrameTransfer transfer = new FrameTransfer(SerialProtocol.FrameTypes.STRING, text.getBytes());
+        transfer.setDeadline(deadline);
+        return transfer;
+    }
+
+    @Test
+    public void earliestDeadlineFirstThenUndatedInQueueOrder() throws Exception {
+        FrameScheduler scheduler = new FrameScheduler();
+        FrameTransfer first = frame("first", FrameTransfer.NO_DEADLINE);
+        FrameTransfer late = frame("late", 3000);
+        FrameTransfer second = frame("second", FrameTransfer.NO_DEADLINE);
+        FrameTransfer soon = frame("soon", 1000);
+        scheduler.add(first);
+        scheduler.add(late);
+        scheduler.add(second);
+        scheduler.add(soon);
+
+        List<FrameTransfer> stale = new ArrayList<>();
+        assertSame(soon, scheduler.poll(0, 0, stale));
+        assertSame(late, scheduler.poll(0, 0, stale));
+        assertSame(first, scheduler.poll(0, 0, stale));
+        assertSame(second, scheduler.poll(0, 0, stale));
+        assertNull(scheduler.poll(0, 0, stale));
+        assertTrue(stale.isEmpty());
+    }
+
+    @Test
+    public void framesThatCannotMakeTheirDeadlineAreDropped() throws Exception {
+        FrameScheduler scheduler = new FrameScheduler();
+        // 3 packets at 100 packets per second take 30 ms
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        FrameTransfer expired = frame("expired", 5 * ms);
+        FrameTransfer tooShort = frame("too short", 30 * ms);
+        FrameTransfer inTime = frame("in time", 40 * ms);
+        FrameTransfer undated = frame("undated", FrameTransfer.NO_DEADLINE);
+        scheduler.add(undated);
+        scheduler.add(inTime);
+        scheduler.add(tooShort);
+        scheduler.add(expired);
+
+        List<FrameTransfer> stale = new ArrayList<>();
+        assertSame(inTime, scheduler.poll(5 * ms, 100, stale));
+        assertEquals(2, stale.size());
+        assertSame(expired, stale.get(0));
+        assertSame(tooShort, stale.get(1));
+        // an undated frame is never late
+        assertSame(undated, scheduler.poll(Long.MAX_VALUE / 2, 100, stale));
+        assertEquals(2, stale.size());
+    }
+
+    @Test
+    public void writerDropsStaleFrameWithoutWritingIt() throws Exception {
+        final List<FrameTransfer> written = Collections.synchronizedList(new ArrayList<FrameTransfer>());
+        final List<FrameTransfer> dropped = Collections.synchronizedList(new ArrayList<FrameTransfer>());
+        final CountDownLatch done = new CountDownLatch(1);
+        FrameQueue queue = new FrameQueue();
+        final FrameWriter[] writer = new FrameWriter[1];
+        writer[0] = new FrameWriter("test writer", queue, new LinkAutotuner(), new FrameWriter.Link() {
+            @Override
+            public void writePacket(byte[] packet, FrameTransfer transfer) {
+                if (!written.contains(transfer))
+                    written.add(transfer);
+                writer[0].onWriteDone();
+            }
+
+            @Override
+            public void onLastPacket(FrameTransfer transfer) {
+                if (transfer.getDeadline() == FrameTransfer.NO_DEADLINE)
+                    done.countDown();
+            }
+
+            @Override
+            public void onFrameDropped(FrameTransfer transfer) {
+                dropped.add(transfer);
+            }
+        });
+        writer[0].setPacing(10000, 10);
+
+        long now = System.nanoTime();
+        FrameTransfer stale = frame("stale", now - 1);
+        FrameTransfer fresh = frame("fresh", now + TimeUnit.SECONDS.toNanos(10));
+        FrameTransfer undated = frame("undated", FrameTransfer.NO_DEADLINE);
+        queue.offer(undated);
+        queue.offer(stale);
+        queue.offer(fresh);
+        writer[0].start();
+        try {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            writer[0].stop();
+        }
+        assertEquals(1, dropped.size());
+        assertSame(stale, dropped.get(0));
+        assertFalse(written.contains(stale));
+        assertTrue(written.contains(fresh));
+        assertTrue(written.contains(undated));
+    }
+}
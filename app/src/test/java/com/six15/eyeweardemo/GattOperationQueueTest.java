@@ -0,0 +1,143 @@
+package com.six15.eyeweardemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+
+    private ScheduledExecutorService mTimer;
+    private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+    private class TestOperation extends GattOperationQueue.Operation {
+        private final String mName;
+        private int mRefusals;
+
+        TestOperation(String name, int type, long timeoutMs, int refusals) {
+            this(name, type, null, timeoutMs, refusals);
+        }
+
+        TestOperation(String name, int type, UUID target, long timeoutMs, int refusals) {
+            super(type, target, timeoutMs);
+            mName = name;
+            mRefusals = refusals;
+        }
+
+        @Override
+        protected boolean execute() {
+            mEvents.add("start " + mName);
+            return mRefusals-- <= 0;
+        }
+
+        @Override
+        protected void onFailed(String reason) {
+            mEvents.add("failed " + mName);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void operationsRunOneAtATime() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mTimer);
+        queue.enqueue(new TestOperation("write", GattOperationQueue.OP_WRITE, 1000, 0));
+        queue.enqueue(new TestOperation("descriptor", GattOperationQueue.OP_WRITE_DESCRIPTOR, 1000, 0));
+        assertEquals(Collections.singletonList("start write"), mEvents);
+
+        // a callback of another type does not complete the write
+        assertFalse(queue.complete(GattOperationQueue.OP_READ));
+        assertTrue(queue.complete(GattOperationQueue.OP_WRITE));
+        assertEquals("start descriptor", mEvents.get(1));
+        assertTrue(queue.complete(GattOperationQueue.OP_WRITE_DESCRIPTOR));
+        assertFalse(queue.isBusy());
+    }
+
+    @Test
+    public void refusedOperationIsRetriedThenFailed() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mTimer);
+        queue.enqueue(new TestOperation("read", GattOperationQueue.OP_READ, 1000, 1));
+        queue.enqueue(new TestOperation("mtu", GattOperationQueue.OP_REQUEST_MTU, 1000, 100));
+        Thread.sleep(GattOperationQueue.RETRY_DELAY_MS * 5);
+        assertEquals("start read", mEvents.get(1));
+        queue.complete(GattOperationQueue.OP_READ);
+
+        Thread.sleep(GattOperationQueue.RETRY_DELAY_MS * (GattOperationQueue.MAX_ATTEMPTS + 5));
+        assertEquals("failed mtu", mEvents.get(mEvents.size() - 1));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void missingCallbackTimesOutAndQueueMovesOn() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mTimer);
+        queue.enqueue(new TestOperation("discover", GattOperationQueue.OP_DISCOVER_SERVICES, 50, 0));
+        queue.enqueue(new TestOperation("read", GattOperationQueue.OP_READ, 1000, 0));
+        Thread.sleep(200);
+        assertEquals("failed discover", mEvents.get(1));
+        assertEquals("start read", mEvents.get(2));
+
+        queue.clear("disconnected");
+        assertEquals("failed read", mEvents.get(3));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void stalledWriteIsFailedWithoutWritingItAgain() throws Exception {
+        TransportMetrics metrics = new TransportMetrics();
+        GattOperationQueue queue = new GattOperationQueue(mTimer, metrics);
+        queue.enqueue(new TestOperation("write", GattOperationQueue.OP_WRITE, 30, 0));
+        queue.enqueue(new TestOperation("read", GattOperationQueue.OP_READ, 1000, 0));
+        Thread.sleep(30 + 200);
+
+        // the write may have reached the device with only its callback late
+        assertEquals("[start write, failed write, start read]", mEvents.toString());
+        int write = GattOperationQueue.OP_WRITE;
+        assertEquals(1, metrics.getTimedOutCount(write));
+        assertEquals(0, metrics.getRetryCount(write));
+        assertEquals(1, metrics.getFailedCount(write));
+        assertEquals(0, metrics.getFailedCount(GattOperationQueue.OP_READ));
+
+        assertEquals(GattOperationQueue.RETRY_DELAY_MS, GattOperationQueue.retryDelayMs(1));
+        assertEquals(2 * GattOperationQueue.RETRY_DELAY_MS, GattOperationQueue.retryDelayMs(2));
+        assertEquals(GattOperationQueue.MAX_RETRY_DELAY_MS, GattOperationQueue.retryDelayMs(40));
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteTheNextOperation() throws Exception {
+        UUID tx = Six15GattAttributes.UUID_SIX15_DATA_TX;
+        GattOperationQueue queue = new GattOperationQueue(mTimer);
+        queue.enqueue(new TestOperation("first", GattOperationQueue.OP_WRITE, tx, 30, 0));
+        // the stack is still busy with the first write, so it refuses the second for a while
+        queue.enqueue(new TestOperation("second", GattOperationQueue.OP_WRITE, tx, 1000, 2));
+        Thread.sleep(30 + GattOperationQueue.RETRY_DELAY_MS);
+        assertEquals("failed first", mEvents.get(1));
+        assertEquals("start second", mEvents.get(2));
+
+        // the first write's callback finally arrives while the second waits to be retried
+        assertFalse(queue.complete(GattOperationQueue.OP_WRITE, tx));
+        Thread.sleep(GattOperationQueue.RETRY_DELAY_MS * 5);
+        assertEquals("start second", mEvents.get(mEvents.size() - 1));
+        assertTrue(queue.isBusy());
+
+        // a write callback for another characteristic is not the second write's either
+        assertFalse(queue.complete(GattOperationQueue.OP_WRITE, Six15GattAttributes.UUID_SIX15_DATA_RX));
+        assertTrue(queue.complete(GattOperationQueue.OP_WRITE, tx));
+        assertFalse(queue.isBusy());
+    }
+}
@@ -0,0 +1,48 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyTracerTest {
+
+    private static LatencyTracer.FrameTrace trace(LatencyTracer tracer, long send, long footer) {
+        LatencyTracer.FrameTrace trace = tracer.startTrace(send);
+        trace.markWrite(send + 1);
+        trace.mark(LatencyTracer.STAGE_FOOTER_COMPLETE, footer);
+        return trace;
+    }
+
+    @Test
+    public void percentilesOverCompletedTraces() throws Exception {
+        LatencyTracer tracer = new LatencyTracer(100);
+        for (int i = 1; i <= 100; i++) {
+            tracer.complete(trace(tracer, 1000, 1000 + i));
+        }
+        assertEquals(50, tracer.percentileNanos(LatencyTracer.STAGE_SEND, LatencyTracer.STAGE_FOOTER_COMPLETE, 50));
+        assertEquals(99, tracer.percentileNanos(LatencyTracer.STAGE_SEND, LatencyTracer.STAGE_FOOTER_COMPLETE, 99));
+        // no click or ack was stamped
+        assertEquals(-1, tracer.percentileNanos(LatencyTracer.STAGE_CLICK, LatencyTracer.STAGE_SEND, 50));
+        assertEquals(-1, tracer.percentileNanos(LatencyTracer.STAGE_FOOTER_COMPLETE, LatencyTracer.STAGE_ACK, 50));
+    }
+
+    @Test
+    public void ringKeepsNewestTraces() throws Exception {
+        LatencyTracer tracer = new LatencyTracer(4);
+        for (int i = 1; i <= 10; i++) {
+            tracer.complete(trace(tracer, 1000, 1000 + i));
+        }
+        assertEquals(4, tracer.getTraceCount());
+        assertEquals(7, tracer.percentileNanos(LatencyTracer.STAGE_SEND, LatencyTracer.STAGE_FOOTER_COMPLETE, 0));
+        assertEquals(10, tracer.percentileNanos(LatencyTracer.STAGE_SEND, LatencyTracer.STAGE_FOOTER_COMPLETE, 100));
+    }
+
+    @Test
+    public void clickIsOnlyAttachedWhileMarked() throws Exception {
+        LatencyTracer tracer = new LatencyTracer(4);
+        tracer.markClick();
+        assertTrue(tracer.startTrace(System.nanoTime()).getStamp(LatencyTracer.STAGE_CLICK) != 0);
+        tracer.clearClick();
+        assertEquals(0, tracer.startTrace(System.nanoTime()).getStamp(LatencyTracer.STAGE_CLICK));
+    }
+}
@@ -0,0 +1,119 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkAutotunerTest {
+
+    private static final long MS = 1000000L;
+
+    // writes each packet with the given latency and returns the time after the last one
+    private static long write(LinkAutotuner tuner, long now, int packets, long latency, boolean success) {
+        for (int i = 0; i < packets; i++) {
+            tuner.onWriteStarted(now);
+            now += latency;
+            tuner.onWriteCompleted(now, success);
+        }
+        return now;
+    }
+
+    @Test
+    public void cleanLinkIncreasesRateAndSwitchesToNoResponse() throws Exception {
+        LinkAutotuner tuner = new LinkAutotuner();
+        tuner.setNoResponseSupported(true);
+        write(tuner, 0, 500, 8 * MS, true);
+        assertTrue(tuner.getPacketsPerSecond() > LinkAutotuner.INITIAL_RATE);
+        assertEquals(LinkAutotuner.WRITE_TYPE_NO_RESPONSE, tuner.getWriteType());
+        assertEquals(0.0, tuner.getErrorRate(), 0.001);
+    }
+
+    @Test
+    public void failureHalvesRateAndFallsBackToDefaultWrites() throws Exception {
+        LinkAutotuner tuner = new LinkAutotuner();
+        tuner.setNoResponseSupported(true);
+        long now = write(tuner, 0, 500, 8 * MS, true);
+        double rate = tuner.getPacketsPerSecond();
+
+        write(tuner, now, 1, 8 * MS, false);
+        assertEquals(rate / 2, tuner.getPacketsPerSecond(), 0.5);
+        assertEquals(LinkAutotuner.WRITE_TYPE_DEFAULT, tuner.getWriteType());
+        assertEquals(1, tuner.getFailureCount());
+    }
+
+    @Test
+    public void staysOnAcknowledgedWritesWithoutNoResponseProperty() throws Exception {
+        LinkAutotuner tuner = new LinkAutotuner();
+        write(tuner, 0, 1000, 8 * MS, true);
+        assertEquals(LinkAutotuner.WRITE_TYPE_DEFAULT, tuner.getWriteType());
+        assertTrue(tuner.getPacketsPerSecond() > LinkAutotuner.INITIAL_RATE);
+
+        tuner.setNoResponseSupported(true);
+        write(tuner, 8000 * MS, 1, 8 * MS, true);
+        assertEquals(LinkAutotuner.WRITE_TYPE_NO_RESPONSE, tuner.getWriteType());
+        tuner.setNoResponseSupported(false);
+        assertEquals(LinkAutotuner.WRITE_TYPE_DEFAULT, tuner.getWriteType());
+    }
+
+    @Test
+    public void unacknowledgedFrameCountsAsLoss() throws Exception {
+        final LinkAutotuner tuner = new LinkAutotuner();
+        tuner.setNoResponseSupported(true);
+        write(tuner, 0, 500, 8 * MS, true);
+        assertEquals(LinkAutotuner.WRITE_TYPE_NO_RESPONSE, tuner.getWriteType());
+        double rate = tuner.getPacketsPerSecond();
+
+        // writes without response that never reach the eyewear: every write completes, but
+        // the frames are never acknowledged
+        final FrameWriter[] writer = new FrameWriter[1];
+        final CountDownLatch framesWritten = new CountDownLatch(3);
+        FrameQueue queue = new FrameQueue();
+        writer[0] = new FrameWriter("test writer", queue, tuner, new FrameWriter.Link() {
+            @Override
+            public void writePacket(byte[] packet, FrameTransfer transfer) {
+                writer[0].onWriteDone();
+            }
+
+            @Override
+            public void onLastPacket(FrameTransfer transfer) {
+                framesWritten.countDown();
+            }
+
+            @Override
+            public void onFrameDropped(FrameTransfer transfer) {
+            }
+        });
+        writer[0].setPacing(1000, 10);
+        writer[0].setDeliveryTimeout(0);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new FrameTransfer(SerialProtocol.FrameTypes.STRING, ("frame " + i).getBytes()));
+        }
+        writer[0].start();
+        try {
+            assertTrue(framesWritten.await(5, TimeUnit.SECONDS));
+        } finally {
+            writer[0].stop();
+        }
+        assertEquals(LinkAutotuner.WRITE_TYPE_DEFAULT, tuner.getWriteType());
+        assertTrue(tuner.getPacketsPerSecond() < rate);
+        assertTrue(tuner.getFailureCount() > 0);
+    }
+
+    @Test
+    public void rateStaysWithinLimits() throws Exception {
+        LinkAutotuner tuner = new LinkAutotuner();
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            tuner.onWriteStarted(now);
+            now += 100 * MS;
+            tuner.onWriteRejected(now);
+        }
+        assertEquals(LinkAutotuner.MIN_RATE, tuner.getPacketsPerSecond(), 0.001);
+
+        write(tuner, now, 200000, MS, true);
+        assertEquals(LinkAutotuner.MAX_RATE, tuner.getPacketsPerSecond(), 0.001);
+    }
+}
@@ -0,0 +1,371 @@
+package com.six15.eyeweardemo;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end throughput benchmark without hardware.  A standard mix of commands and images is
+ * encoded and queued the way {@link BluetoothLeService} does it and written by the real
+ * {@link FrameWriter} (pacing and autotuning included) to an emulated BLE link, which carries the
+ * packets to an {@link EyewearSimulator} and its acknowledges back.
+ *
+ * <p>The link runs in real time: every connection interval it transmits up to a fixed number of
+ * packets, a lost packet is retransmitted at the next interval and holds up the ones behind it,
+ * and write callbacks arrive after a configurable latency - once the packet is buffered for
+ * write-without-response, once the write response is back for write-with-response.
+ *
+ * <p>Run {@link #main} for the standard mix over a few link profiles; {@code LinkBenchmarkTest}
+ * runs a short mix so the harness keeps working.
+ */
+public class LinkBenchmark {
+
+    static final int PACKET_SIZE = 20;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    /**
+     * Link parameters.
+     */
+    public static class LinkProfile {
+        final String name;
+        final double connectionIntervalMs;
+        final int packetsPerInterval;
+        final double callbackLatencyMs;
+        final double lossRate;
+        // only checked to fit one SerialProtocol packet per write: packets are never larger
+        // than PACKET_SIZE, so a bigger MTU does not change what the link carries
+        final int mtu;
+
+        public LinkProfile(String name, double connectionIntervalMs, int packetsPerInterval,
+                           double callbackLatencyMs, double lossRate, int mtu) {
+            // SerialProtocol packets are never split, so they have to fit in one ATT write
+            if (mtu - ATT_HEADER_SIZE < PACKET_SIZE)
+                throw new IllegalArgumentException("MTU " + mtu + " cannot carry a " + PACKET_SIZE + " byte packet");
+            if (connectionIntervalMs <= 0 || packetsPerInterval < 1 || lossRate < 0 || lossRate >= 1)
+                throw new IllegalArgumentException("bad link profile " + name);
+            this.name = name;
+            this.connectionIntervalMs = connectionIntervalMs;
+            this.packetsPerInterval = packetsPerInterval;
+            this.callbackLatencyMs = callbackLatencyMs;
+            this.lossRate = lossRate;
+            this.mtu = mtu;
+        }
+    }
+
+    /**
+     * The frames to send: {@code commands} short text commands with an image after every
+     * {@code commandsPerImage} of them, one frame every {@code periodMs}.
+     */
+    public static class Mix {
+        final int commands;
+        final int commandsPerImage;
+        final int imageSize;
+        final long periodMs;
+
+        public Mix(int commands, int commandsPerImage, int imageSize, long periodMs) {
+            this.commands = commands;
+            this.commandsPerImage = commandsPerImage;
+            this.imageSize = imageSize;
+            this.periodMs = periodMs;
+        }
+    }
+
+    public static final Mix STANDARD_MIX = new Mix(100, 10, 2048, 50);
+
+    public static class Result {
+        final String profile;
+        final int framesSent;
+        final int framesAcknowledged;
+        final long bytesAcknowledged;
+        final long elapsedNanos;
+        final int packetsLost;
+        final LatencyTracer commandLatency;
+        final LatencyTracer imageLatency;
+
+        Result(String profile, int framesSent, int framesAcknowledged, long bytesAcknowledged,
+               long elapsedNanos, int packetsLost, LatencyTracer commandLatency, LatencyTracer imageLatency) {
+            this.profile = profile;
+            this.framesSent = framesSent;
+            this.framesAcknowledged = framesAcknowledged;
+            this.bytesAcknowledged = bytesAcknowledged;
+            this.elapsedNanos = elapsedNanos;
+            this.packetsLost = packetsLost;
+            this.commandLatency = commandLatency;
+            this.imageLatency = imageLatency;
+        }
+
+        public double framesPerSecond() {
+            return framesAcknowledged * 1e9 / elapsedNanos;
+        }
+
+        public double bytesPerSecond() {
+            return bytesAcknowledged * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return the percentile of enqueue to acknowledge latency in ms, -1 without data.
+         */
+        public double latencyMs(boolean images, double percentile) {
+            LatencyTracer tracer = images ? imageLatency : commandLatency;
+            long nanos = tracer.percentileNanos(LatencyTracer.STAGE_ENQUEUE, LatencyTracer.STAGE_ACK, percentile);
+            return nanos < 0 ? -1 : nanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%-12s %4d/%-4d frames %7.1f frames/s %9.0f B/s  cmd p50 %7.1f p99 %7.1f ms"
+                            + "  img p50 %7.1f p99 %7.1f ms  lost %d",
+                    profile, framesAcknowledged, framesSent, framesPerSecond(), bytesPerSecond(),
+                    latencyMs(false, 50), latencyMs(false, 99), latencyMs(true, 50), latencyMs(true, 99),
+                    packetsLost);
+        }
+    }
+
+    // A packet handed to the emulated controller.
+    private static class Pending {
+        final byte[] packet;
+        final FrameTransfer transfer;
+        final boolean bLastPacket;
+        final boolean bNoResponse;
+        boolean bCallbackScheduled = false;
+
+        Pending(byte[] packet, FrameTransfer transfer, boolean lastPacket, boolean noResponse) {
+            this.packet = packet;
+            this.transfer = transfer;
+            bLastPacket = lastPacket;
+            bNoResponse = noResponse;
+        }
+    }
+
+    /**
+     * The emulated link between a {@link FrameWriter} and an {@link EyewearSimulator}.  All link
+     * events run on one scheduler thread.
+     */
+    static class EmulatedLink implements FrameWriter.Link, EyewearSimulator.Listener {
+        private final LinkProfile mProfile;
+        private final LinkAutotuner mTuner;
+        private final Random mRandom;
+        private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+        private final EyewearSimulator mSimulator = new EyewearSimulator(this, 0);
+        private FrameWriter mWriter;
+
+        // controller buffer, guarded by itself
+        private final ArrayDeque<Pending> mBuffer = new ArrayDeque<>();
+        private FrameTransfer mLastPacketTaken = null;
+
+        // written on the link thread only
+        private FrameTransfer mDelivering = null;
+        private volatile int mPacketsLost = 0;
+        private volatile int mFramesAcknowledged = 0;
+        private volatile long mBytesAcknowledged = 0;
+        private final CountDownLatch mDone;
+        private final LatencyTracer mCommandLatency;
+        private final LatencyTracer mImageLatency;
+
+        EmulatedLink(LinkProfile profile, LinkAutotuner tuner, long seed, int frames,
+                     LatencyTracer commandLatency, LatencyTracer imageLatency) {
+            mProfile = profile;
+            mTuner = tuner;
+            mRandom = new Random(seed);
+            mDone = new CountDownLatch(frames);
+            mCommandLatency = commandLatency;
+            mImageLatency = imageLatency;
+        }
+
+        void start(FrameWriter writer) {
+            mWriter = writer;
+            long interval = (long) (mProfile.connectionIntervalMs * 1e6);
+            mScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    connectionEvent();
+                }
+            }, interval, interval, TimeUnit.NANOSECONDS);
+        }
+
+        void stop() {
+            mScheduler.shutdownNow();
+        }
+
+        boolean awaitFrames(long timeoutMs) throws InterruptedException {
+            return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onLastPacket(FrameTransfer transfer) {
+            mLastPacketTaken = transfer;
+        }
+
+        @Override
+        public void onFrameDropped(FrameTransfer transfer) {
+            // never acknowledged, so do not wait for it
+            mDone.countDown();
+        }
+
+        @Override
+        public void writePacket(byte[] packet, FrameTransfer transfer) {
+            final long now = System.nanoTime();
+            mTuner.onWriteStarted(now);
+            if (transfer.getTrace() != null) {
+                transfer.getTrace().markWrite(now);
+            }
+            boolean last = mLastPacketTaken == transfer;
+            if (last)
+                mLastPacketTaken = null;
+            Pending pending = new Pending(packet, transfer, last,
+                    mTuner.getWriteType() == LinkAutotuner.WRITE_TYPE_NO_RESPONSE);
+            synchronized (mBuffer) {
+                mBuffer.add(pending);
+                // without response the stack confirms as soon as it has buffer space
+                if (pending.bNoResponse && mBuffer.size() <= mProfile.packetsPerInterval) {
+                    scheduleCallback(pending, 0);
+                }
+            }
+        }
+
+        private void scheduleCallback(final Pending pending, double extraMs) {
+            pending.bCallbackScheduled = true;
+            long delay = (long) ((mProfile.callbackLatencyMs + extraMs) * 1e6);
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final long now = System.nanoTime();
+                    mTuner.onWriteCompleted(now, true);
+                    if (pending.bLastPacket && pending.transfer.getTrace() != null) {
+                        pending.transfer.getTrace().mark(LatencyTracer.STAGE_FOOTER_COMPLETE, now);
+                    }
+                    mWriter.onWriteDone();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        private void connectionEvent() {
+            for (int sent = 0; sent < mProfile.packetsPerInterval; sent++) {
+                Pending pending;
+                synchronized (mBuffer) {
+                    pending = mBuffer.peek();
+                    if (pending == null)
+                        return;
+                    if (mRandom.nextDouble() < mProfile.lossRate) {
+                        // link layer retransmits it at the next event, in order
+                        mPacketsLost++;
+                        return;
+                    }
+                    mBuffer.poll();
+                    if (!pending.bCallbackScheduled) {
+                        // a write response comes back with the next connection event
+                        scheduleCallback(pending, pending.bNoResponse ? 0 : mProfile.connectionIntervalMs);
+                    }
+                    Pending waiting = null;
+                    for (Pending p : mBuffer) {
+                        if (!p.bCallbackScheduled) {
+                            waiting = p;
+                            break;
+                        }
+                    }
+                    if (waiting != null && waiting.bNoResponse && mBuffer.size() <= mProfile.packetsPerInterval) {
+                        scheduleCallback(waiting, 0);
+                    }
+                }
+                mDelivering = pending.transfer;
+                mSimulator.receive(pending.packet);
+                mDelivering = null;
+            }
+        }
+
+        @Override
+        public void onNotification(byte[] packet) {
+            FrameTransfer transfer = mDelivering;
+            int confirmed = SerialProtocol.parseAcknowledge(packet);
+            if (confirmed >= 0)
+                mWriter.onAcknowledge(confirmed);
+            if (transfer == null || confirmed < transfer.getFrame().getDataPacketCount())
+                return;
+            if (transfer.getTrace() != null) {
+                transfer.getTrace().mark(LatencyTracer.STAGE_ACK);
+                boolean image = transfer.getType() == SerialProtocol.FrameTypes.IMAGE;
+                (image ? mImageLatency : mCommandLatency).complete(transfer.getTrace());
+            }
+            mFramesAcknowledged++;
+            mBytesAcknowledged += transfer.getFrame().getDataLength();
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFrameReceived(SerialProtocol.FrameTypes type, byte[] data) {
+        }
+    }
+
+    /**
+     * Sends {@code mix} over a link with {@code profile} and waits for every frame to be
+     * acknowledged, or {@code timeoutMs} after the last one was queued.
+     */
+    public static Result run(LinkProfile profile, Mix mix, long seed, long timeoutMs) throws InterruptedException {
+        final int images = mix.commandsPerImage > 0 ? mix.commands / mix.commandsPerImage : 0;
+        final int frames = mix.commands + images;
+        LatencyTracer commandLatency = new LatencyTracer(Math.max(1, mix.commands));
+        LatencyTracer imageLatency = new LatencyTracer(Math.max(1, images));
+
+        FrameQueue queue = new FrameQueue();
+        LinkAutotuner tuner = new LinkAutotuner();
+        // the emulated TX characteristic takes writes without response
+        tuner.setNoResponseSupported(true);
+        EmulatedLink link = new EmulatedLink(profile, tuner, seed, frames, commandLatency, imageLatency);
+        FrameWriter writer = new FrameWriter("LinkBenchmark TX", queue, tuner, link);
+        link.start(writer);
+        writer.start();
+
+        Random random = new Random(seed);
+        Charset ascii = Charset.forName("US-ASCII");
+        byte[] image = new byte[mix.imageSize];
+        long start = System.nanoTime();
+        try {
+            int sent = 0;
+            for (int i = 1; i <= mix.commands; i++) {
+                String command = "TEXT " + i + " " + Long.toHexString(random.nextLong());
+                enqueue(queue, commandLatency, SerialProtocol.FrameTypes.STRING, command.getBytes(ascii));
+                sent++;
+                if (mix.commandsPerImage > 0 && i % mix.commandsPerImage == 0) {
+                    random.nextBytes(image);
+                    enqueue(queue, commandLatency, SerialProtocol.FrameTypes.IMAGE, image.clone());
+                    sent++;
+                }
+                if (mix.periodMs > 0)
+                    Thread.sleep(mix.periodMs);
+            }
+            link.awaitFrames(timeoutMs);
+            long elapsed = System.nanoTime() - start;
+            return new Result(profile.name, sent, link.mFramesAcknowledged, link.mBytesAcknowledged,
+                    elapsed, link.mPacketsLost, commandLatency, imageLatency);
+        } finally {
+            writer.stop();
+            link.stop();
+        }
+    }
+
+    // The service's per frame path, minus the encoder thread and the journal.
+    private static void enqueue(FrameQueue queue, LatencyTracer tracer, SerialProtocol.FrameTypes type, byte[] data) {
+        LatencyTracer.FrameTrace[] traces = { tracer.startTrace(System.nanoTime()) };
+        for (FrameTransfer transfer : BluetoothLeService.createTransfers(type, data, traces, FrameTransfer.NO_DEADLINE)) {
+            EyewearConnection.queueTransfer(queue, null, transfer);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LinkProfile[] profiles = {
+                new LinkProfile("7.5ms x4", 7.5, 4, 1, 0, 23),
+                new LinkProfile("15ms x6", 15, 6, 2, 0, 185),
+                new LinkProfile("30ms x2", 30, 2, 5, 0, 23),
+                new LinkProfile("15ms 5%loss", 15, 6, 2, 0.05, 23),
+        };
+        for (LinkProfile profile : profiles) {
+            System.out.println(run(profile, STANDARD_MIX, 1, 30000));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkBenchmarkTest {
+
+    private static final LinkBenchmark.Mix SHORT_MIX = new LinkBenchmark.Mix(20, 10, 1000, 2);
+
+    @Test
+    public void shortMixIsDeliveredOverCleanLink() throws Exception {
+        LinkBenchmark.LinkProfile profile = new LinkBenchmark.LinkProfile("clean", 1, 8, 0.2, 0, 23);
+        LinkBenchmark.Result result = LinkBenchmark.run(profile, SHORT_MIX, 1, 10000);
+        assertEquals(22, result.framesSent);
+        assertEquals(result.framesSent, result.framesAcknowledged);
+        // two 1000 byte images plus the commands
+        assertTrue(result.bytesAcknowledged > 2 * 1000);
+        assertTrue(result.framesPerSecond() > 0);
+        assertTrue(result.latencyMs(false, 50) > 0);
+        assertTrue(result.latencyMs(true, 99) >= result.latencyMs(true, 50));
+    }
+
+    @Test
+    public void lossyLinkStillDeliversEveryFrame() throws Exception {
+        LinkBenchmark.LinkProfile profile = new LinkBenchmark.LinkProfile("lossy", 1, 8, 0.2, 0.2, 23);
+        LinkBenchmark.Result result = LinkBenchmark.run(profile, SHORT_MIX, 2, 10000);
+        assertEquals(result.framesSent, result.framesAcknowledged);
+        assertTrue(result.packetsLost > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mtuTooSmallForPacketIsRejected() throws Exception {
+        new LinkBenchmark.LinkProfile("tiny", 7.5, 4, 1, 0, 22);
+    }
+}
@@ -0,0 +1,61 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NotificationRingTest {
+
+    @Test
+    public void fullRingDropsAndCounts() throws Exception {
+        NotificationRing ring = new NotificationRing(3, 20);
+        assertEquals(4, ring.getCapacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(new byte[] { (byte) i }));
+        }
+        assertFalse(ring.offer(new byte[] { 4 }));
+        assertFalse(ring.offer(new byte[21]));
+        assertEquals(2, ring.getDroppedCount());
+
+        byte[] out = new byte[20];
+        assertEquals(1, ring.poll(out));
+        assertEquals(0, out[0]);
+        assertTrue(ring.offer(new byte[] { 5, 6 }));
+        assertEquals(4, ring.size());
+    }
+
+    @Test
+    public void consumerSeesEveryValueInOrder() throws Exception {
+        final NotificationRing ring = new NotificationRing(8, 20);
+        final int count = 100000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] value = new byte[4];
+                for (int i = 0; i < count; ) {
+                    value[0] = (byte) (i >> 24);
+                    value[1] = (byte) (i >> 16);
+                    value[2] = (byte) (i >> 8);
+                    value[3] = (byte) i;
+                    if (ring.offer(value))
+                        i++;
+                    else
+                        Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        byte[] out = new byte[20];
+        for (int i = 0; i < count; i++) {
+            assertEquals(4, ring.take(out, TimeUnit.SECONDS.toNanos(5)));
+            int value = ((out[0] & 0xFF) << 24) | ((out[1] & 0xFF) << 16)
+                    | ((out[2] & 0xFF) << 8) | (out[3] & 0xFF);
+            assertEquals(i, value);
+        }
+        producer.join();
+        assertEquals(-1, ring.poll(out));
+    }
+}
@@ -0,0 +1,108 @@
+package com.six15.eyeweardemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboundJournalTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("outbound", ".journal");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static EncodedFrame frame(String text) {
+        return EncodedFrame.encode(SerialProtocol.FrameTypes.STRING, text.getBytes());
+    }
+
+    @Test
+    public void replaysFramesAfterReopen() throws Exception {
+        OutboundJournal journal = new OutboundJournal(file, 4096);
+        long first = journal.append(frame("bem"));
+        journal.append(frame("blt 35,45,0,"));
+        journal.checkpoint(first);
+        journal.close();
+
+        OutboundJournal reopened = new OutboundJournal(file, 4096);
+        List<EncodedFrame> frames = reopened.replay();
+        assertEquals(1, frames.size());
+        EncodedFrame expected = frame("blt 35,45,0,");
+        assertEquals(expected.getPacketCount(), frames.get(0).getPacketCount());
+        assertEquals(expected.getCrc(), frames.get(0).getCrc());
+        for (int i = 0; i < expected.getPacketCount(); i++) {
+            assertArrayEquals(expected.getPacket(i), frames.get(0).getPacket(i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void reusesSpaceOnceFramesAreDelivered() throws Exception {
+        OutboundJournal journal = new OutboundJournal(file, 1024);
+        for (int i = 0; i < 100; i++) {
+            long end = journal.append(frame("frame " + i));
+            journal.checkpoint(end);
+        }
+        assertTrue(journal.isEmpty());
+        journal.close();
+        assertEquals(1024, file.length());
+    }
+
+    @Test
+    public void offsetsStayValidWhenPendingFramesAreMoved() throws Exception {
+        OutboundJournal journal = new OutboundJournal(file, 1024);
+        // three frames in flight at any time, as with a queue behind the writer
+        long[] offsets = new long[100];
+        for (int i = 0; i < 100; i++) {
+            offsets[i] = journal.append(frame("frame " + i));
+            if (i >= 3)
+                journal.checkpoint(offsets[i - 3]);
+            assertEquals(Math.min(i + 1, 3), journal.replay().size());
+        }
+        // space was reused rather than the file grown
+        assertEquals(1024, file.length());
+        assertEquals(offsets[98], (long) journal.pendingOffsets().get(1));
+
+        // a frame sent before its offset was moved is not replayed again
+        journal.checkpoint(offsets[97]);
+        List<EncodedFrame> frames = journal.replay();
+        assertEquals(2, frames.size());
+        assertEquals(frame("frame 98").getCrc(), frames.get(0).getCrc());
+        // an offset from before the move is ignored rather than taken as a file position
+        journal.checkpoint(offsets[10]);
+        assertEquals(2, journal.replay().size());
+        journal.close();
+
+        OutboundJournal reopened = new OutboundJournal(file, 1024);
+        frames = reopened.replay();
+        assertEquals(2, frames.size());
+        assertEquals(frame("frame 99").getCrc(), frames.get(1).getCrc());
+        reopened.checkpoint(reopened.pendingOffsets().get(1));
+        assertTrue(reopened.isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    public void growsWhenPendingFramesDoNotFit() throws Exception {
+        OutboundJournal journal = new OutboundJournal(file, 1024);
+        for (int i = 0; i < 20; i++) {
+            journal.append(frame("pending frame " + i));
+        }
+        List<EncodedFrame> frames = journal.replay();
+        assertEquals(20, frames.size());
+        assertEquals(20, journal.pendingOffsets().size());
+        journal.close();
+    }
+}
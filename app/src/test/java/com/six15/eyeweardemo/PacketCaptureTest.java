@@ -0,0 +1,145 @@
+package com.six15.eyeweardemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class PacketCaptureTest {
+
+    private static final long MS = 1000000L;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("session", ".cap");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    // Records a frame's packets 1 ms apart followed by the glass acknowledging it.
+    private static long recordFrame(PacketCapture capture, String text, long now) {
+        EncodedFrame frame = EncodedFrame.encode(SerialProtocol.FrameTypes.STRING, text.getBytes());
+        for (int i = 0; i < frame.getPacketCount(); i++) {
+            capture.record(PacketCapture.DIRECTION_TX, now, frame.getPacket(i));
+            now += MS;
+        }
+        capture.record(PacketCapture.DIRECTION_RX, now,
+                SerialProtocol.buildAcknowledge(frame.getDataPacketCount()));
+        return now + MS;
+    }
+
+    @Test
+    public void recordsReadBackAndReplayThroughSimulator() throws Exception {
+        PacketCapture capture = new PacketCapture(file);
+        long start = 5000 * MS;
+        long now = recordFrame(capture, "bem", start);
+        now = recordFrame(capture, "a command that needs several packets to go out", now);
+        capture.close();
+
+        PacketCapture.Reader reader = new PacketCapture.Reader(file);
+        PacketCapture.Record first = reader.next();
+        assertEquals(PacketCapture.DIRECTION_TX, first.direction);
+        assertEquals(start, first.timestampNanos);
+        assertEquals(SerialProtocol.PACKET_SIZE, first.value.length);
+        int records = 1;
+        PacketCapture.Record last = first;
+        PacketCapture.Record record;
+        while ((record = reader.next()) != null) {
+            last = record;
+            records++;
+        }
+        reader.close();
+        assertEquals(capture.getRecordedCount(), records);
+        assertEquals(PacketCapture.DIRECTION_RX, last.direction);
+        assertEquals(now - MS, last.timestampNanos);
+
+        CaptureReplay.Result result = CaptureReplay.replay(file, 0, 0);
+        assertEquals(2, result.framesReceived);
+        assertEquals(0, result.framesDropped);
+        assertEquals(2, result.capturedAcknowledges);
+        assertEquals(result.capturedAcknowledges, result.simulatedAcknowledges);
+    }
+
+    @Test
+    public void acceleratedReplayKeepsRelativeTiming() throws Exception {
+        PacketCapture capture = new PacketCapture(file);
+        byte[] packet = new byte[SerialProtocol.PACKET_SIZE];
+        for (int i = 0; i <= 100; i++) {
+            capture.record(PacketCapture.DIRECTION_RX, i * MS, packet);
+        }
+        capture.close();
+
+        // a clock that only moves while the replay waits
+        final long[] now = { 1000 * MS };
+        CaptureReplay.Clock clock = new CaptureReplay.Clock() {
+            @Override
+            public long nanoTime() {
+                return now[0];
+            }
+
+            @Override
+            public void parkNanos(long nanos) {
+                now[0] += nanos;
+            }
+        };
+        CaptureReplay.Result result = CaptureReplay.replay(file, 5, 0, clock);
+        assertEquals(101, result.rxPackets);
+        assertEquals(100 * MS, result.recordedNanos);
+        assertEquals(20 * MS, result.replayNanos);
+        assertEquals(0, result.maxLagNanos);
+
+        // on the system clock the replay cannot be faster than asked for
+        result = CaptureReplay.replay(file, 5, 0);
+        assertTrue(result.replayNanos >= 20 * MS);
+    }
+
+    @Test
+    public void recordsPastOneBuffer() throws Exception {
+        PacketCapture capture = new PacketCapture(file);
+        byte[] packet = new byte[SerialProtocol.PACKET_SIZE];
+        for (int i = 0; i < 10000; i++) {
+            capture.record(PacketCapture.DIRECTION_TX, i * MS, packet);
+        }
+        capture.close();
+        assertEquals(10000, capture.getRecordedCount() + capture.getDroppedCount());
+
+        PacketCapture.Reader reader = new PacketCapture.Reader(file);
+        int records = 0;
+        while (reader.next() != null) {
+            records++;
+        }
+        reader.close();
+        assertEquals(capture.getRecordedCount(), records);
+        // at least the first full buffer and the record that did not fit in it
+        assertTrue(file.length() > 64 * 1024);
+    }
+
+    @Test
+    public void stopsRecordingAtSizeLimit() throws Exception {
+        PacketCapture capture = new PacketCapture(file, 1000);
+        byte[] packet = new byte[SerialProtocol.PACKET_SIZE];
+        for (int i = 0; i < 100; i++) {
+            capture.record(PacketCapture.DIRECTION_TX, i * MS, packet);
+        }
+        capture.close();
+        assertTrue(capture.getDroppedCount() > 0);
+        assertEquals(100, capture.getRecordedCount() + capture.getDroppedCount());
+        assertTrue(file.length() <= 1000);
+
+        PacketCapture.Reader reader = new PacketCapture.Reader(file);
+        int records = 0;
+        while (reader.next() != null) {
+            records++;
+        }
+        reader.close();
+        assertEquals(capture.getRecordedCount(), records);
+    }
+}
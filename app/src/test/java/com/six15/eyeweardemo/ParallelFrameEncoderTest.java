@@ -0,0 +1,56 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class ParallelFrameEncoderTest {
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void combinedCrcMatchesWholeCrc() throws Exception {
+        byte[] data = randomData(1000);
+        CRC32 whole = new CRC32();
+        whole.update(data, 0, data.length);
+        CRC32 first = new CRC32();
+        first.update(data, 0, 333);
+        CRC32 second = new CRC32();
+        second.update(data, 333, 667);
+        assertEquals(whole.getValue(),
+                ParallelFrameEncoder.combineCrc32(first.getValue(), second.getValue(), 667));
+    }
+
+    @Test
+    public void parallelOutputIsIdenticalToSequential() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            int[] lengths = { 1, 18, 19, 20, 38, 1000, 65537, 1245165 };
+            for (int length : lengths) {
+                for (int parts = 1; parts <= 5; parts += 2) {
+                    byte[] data = randomData(length);
+                    EncodedFrame sequential = EncodedFrame.encode(SerialProtocol.FrameTypes.IMAGE, data);
+                    EncodedFrame parallel = ParallelFrameEncoder.encode(
+                            SerialProtocol.FrameTypes.IMAGE, data, executor, parts);
+                    assertEquals("length " + length, sequential.getCrc(), parallel.getCrc());
+                    assertEquals(sequential.getPacketCount(), parallel.getPacketCount());
+                    for (int i = 0; i < sequential.getPacketCount(); i++) {
+                        assertArrayEquals("length " + length + " packet " + i,
+                                sequential.getPacket(i), parallel.getPacket(i));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
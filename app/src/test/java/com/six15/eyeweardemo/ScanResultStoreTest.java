@@ -0,0 +1,75 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanResultStoreTest {
+
+    private static List<String> addresses(ScanResultStore store) {
+        List<ScanResultStore.ScanEntry> entries = new ArrayList<>();
+        store.copySorted(entries);
+        List<String> addresses = new ArrayList<>();
+        for (ScanResultStore.ScanEntry entry : entries) {
+            addresses.add(entry.getAddress());
+        }
+        return addresses;
+    }
+
+    @Test
+    public void repeatedAdvertisementsUpdateOneEntry() throws Exception {
+        ScanResultStore store = new ScanResultStore();
+        assertTrue(store.update("A", null, -80, 0));
+        assertTrue(store.update("B", null, -60, 10));
+        assertFalse(store.update("A", null, -50, 20));
+        assertEquals(2, store.size());
+        assertEquals(-50, getEntry(store, "A").getRssi());
+        assertEquals(20, getEntry(store, "A").getLastSeen());
+        // strongest first
+        assertEquals("A", addresses(store).get(0));
+    }
+
+    @Test
+    public void onlyChangesMarkTheListForRedraw() throws Exception {
+        ScanResultStore store = new ScanResultStore();
+        store.update("A", null, -70, 0);
+        assertTrue(store.isDirty());
+        addresses(store);
+        assertFalse(store.isDirty());
+
+        // same RSSI again: nothing to redraw
+        store.update("A", null, -70, 100);
+        assertFalse(store.isDirty());
+        store.update("A", null, -65, 200);
+        assertTrue(store.isDirty());
+    }
+
+    @Test
+    public void devicesThatStopAdvertisingExpire() throws Exception {
+        ScanResultStore store = new ScanResultStore();
+        store.update("A", null, -70, 0);
+        store.update("B", null, -60, 5000);
+        addresses(store);
+
+        assertEquals(1, store.expire(1000));
+        assertTrue(store.isDirty());
+        assertEquals(1, store.size());
+        assertEquals("B", addresses(store).get(0));
+        // an expired device is new again when it comes back
+        assertTrue(store.update("A", null, -70, 6000));
+        assertEquals(0, store.expire(1000));
+    }
+
+    private static ScanResultStore.ScanEntry getEntry(ScanResultStore store, String address) {
+        List<ScanResultStore.ScanEntry> entries = new ArrayList<>();
+        store.copySorted(entries);
+        for (ScanResultStore.ScanEntry entry : entries) {
+            if (entry.getAddress().equals(address))
+                return entry;
+        }
+        return null;
+    }
+}
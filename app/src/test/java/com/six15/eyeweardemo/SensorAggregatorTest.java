@@ -0,0 +1,80 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SensorAggregatorTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void rollingStatisticsMatchTheWindow() throws Exception {
+        // 16 samples or 1 s, whichever is shorter
+        SensorAggregator aggregator = new SensorAggregator(16, 1000, 1000);
+        List<long[]> samples = new ArrayList<>();
+        Random random = new Random(4);
+        long now = 0;
+        for (int i = 0; i < 2000; i++) {
+            now += random.nextInt(150) * MS;
+            int value = 40 + random.nextInt(150);
+            aggregator.record(now, value);
+            samples.add(new long[] { now, value });
+
+            int count = 0, min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            long sum = 0;
+            for (int j = samples.size() - 1; j >= 0 && count < 16; j--) {
+                if (now - samples.get(j)[0] > 1000 * MS)
+                    break;
+                int v = (int) samples.get(j)[1];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                sum += v;
+                count++;
+            }
+            assertEquals(count, aggregator.getCount());
+            assertEquals(value, aggregator.getLatest());
+            assertEquals(min, aggregator.getMin());
+            assertEquals(max, aggregator.getMax());
+            assertEquals((double) sum / count, aggregator.getAverage(), 1e-9);
+        }
+
+        aggregator.expire(now + 1001 * MS);
+        assertEquals(0, aggregator.getCount());
+        assertEquals(0, aggregator.getMin());
+        assertEquals(0, aggregator.getAverage(), 0);
+    }
+
+    @Test
+    public void overlayIsRateCapped() throws Exception {
+        SensorAggregator aggregator = new SensorAggregator(64, 30000, 1000);
+        assertNull(aggregator.pollOverlay(1));
+
+        aggregator.record(1, 70);
+        assertEquals("HR 70 (70-70 avg 70)", aggregator.pollOverlay(1));
+        // ten samples a second, one summary a second
+        int summaries = 0;
+        for (int i = 1; i <= 30; i++) {
+            long now = 1 + i * 100 * MS;
+            aggregator.record(now, 70 + i);
+            if (aggregator.pollOverlay(now) != null)
+                summaries++;
+        }
+        assertEquals(3, summaries);
+        // nothing new, nothing to push
+        assertNull(aggregator.pollOverlay(10000 * MS));
+    }
+
+    @Test
+    public void heartRateMeasurementFormats() throws Exception {
+        assertEquals(72, SensorAggregator.parseHeartRate(new byte[] { 0x00, 72 }));
+        assertEquals(200, SensorAggregator.parseHeartRate(new byte[] { 0x16, (byte) 200, 0x10, 0x02 }));
+        assertEquals(300, SensorAggregator.parseHeartRate(new byte[] { 0x01, 0x2C, 0x01 }));
+        assertEquals(-1, SensorAggregator.parseHeartRate(new byte[] { 0x01, 0x2C }));
+        assertEquals(-1, SensorAggregator.parseHeartRate(new byte[] { 0x00 }));
+    }
+}
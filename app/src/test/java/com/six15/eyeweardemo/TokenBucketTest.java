@@ -0,0 +1,51 @@
+package com.six15.eyeweardemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long MS = 1000000L;
+
+    private static class FakeClock implements TokenBucket.Clock {
+        long now = 0;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    @Test
+    public void burstThenSteadyRate() throws Exception {
+        FakeClock clock = new FakeClock();
+        TokenBucket bucket = new TokenBucket(100, 3, clock);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire());
+        }
+        // empty: the next token is 10 ms away at 100/s
+        assertEquals(10 * MS, bucket.tryAcquire());
+        clock.now += 10 * MS;
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+
+        // a long idle period only refills up to the burst
+        clock.now += 1000 * MS;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire());
+        }
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    @Test
+    public void rateChangeKeepsEarnedTokens() throws Exception {
+        FakeClock clock = new FakeClock();
+        TokenBucket bucket = new TokenBucket(100, 1, clock);
+        assertEquals(0, bucket.tryAcquire());
+        clock.now += 5 * MS;
+        // half a token earned at 100/s; at 50/s the other half takes another 10 ms
+        bucket.setRate(50);
+        assertEquals(10 * MS, bucket.tryAcquire());
+    }
+}